@@ -0,0 +1,149 @@
+package org.chatroom;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Optional frame compression, negotiated in the handshake. A compressed frame has the high
+// bit of its length prefix set and carries the uncompressed length followed by raw deflate
+// data primed with a dictionary both sides share:
+//
+//   length|0x80000000:i32  rawLength:i32  deflate
+//
+// Every frame is compressed on its own rather than as part of a per-connection stream, so the
+// server compresses a broadcast frame once for all its recipients. Frames below THRESHOLD and
+// frames that do not shrink are sent as they are.
+public final class Compression {
+    // Capability bit sent in the handshake.
+    public static final int DEFLATE = 1;
+    public static final int COMPRESSED = 0x80000000;
+    public static final int THRESHOLD = 128;
+    // Largest frame a peer may announce, before or after inflating. Lengths are read off the
+    // wire and checked against it before anything is allocated for them.
+    public static final int MAX_FRAME = 16 * 1024 * 1024;
+    // Deflater and Inflater hold native memory, reuse them rather than one per frame.
+    private static final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    // Deflate finds matches in the dictionary as if it preceded the frame, the most likely
+    // strings go last. Changing it breaks compatibility with peers that use the old one.
+    private static final byte[] DICTIONARY = ("""
+            https://www. http:// .com .org .png .jpg \
+            what when where which would could should about there their they them then than \
+            have has had been being just like know think really yeah okay thanks please sorry \
+            today tomorrow tonight morning meeting later soon now here this that with from for \
+            and the you your are was were will can not but all any one some what's it's I'm \
+            don't can't didn't won't let's ok lol haha :) hello hi hey general\
+            """).getBytes(UTF_8);
+
+    private Compression() {
+    }
+
+    // The whole frame to write, length prefix included, or null if it is not worth compressing.
+    public static byte[] compress(byte[] data, int offset, int length) {
+        if (length < THRESHOLD) {
+            return null;
+        }
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            // Only worth it if the result, with its extra length field, is smaller.
+            byte[] out = new byte[4 + length];
+            int size = deflater.deflate(out, 8, out.length - 8);
+            if (!deflater.finished()) {
+                return null;
+            }
+            ByteBuffer.wrap(out).putInt(COMPRESSED | (4 + size)).putInt(length);
+            return Arrays.copyOf(out, 8 + size);
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+
+    // body is what follows a compressed length prefix: the raw length and the deflate data.
+    public static byte[] decompress(byte[] body) throws IOException {
+        if (body.length < 4) {
+            throw new IOException("Malformed compressed frame");
+        }
+        int rawLength = ByteBuffer.wrap(body).getInt();
+        if (rawLength <= 0 || rawLength > MAX_FRAME) {
+            throw new IOException("Malformed compressed frame, raw length " + rawLength);
+        }
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(body, 4, body.length - 4);
+            byte[] data = new byte[rawLength];
+            int size = inflater.inflate(data);
+            if (size != rawLength || !inflater.finished()) {
+                throw new IOException("Corrupt compressed frame");
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        } finally {
+            inflater.reset();
+            inflaters.offer(inflater);
+        }
+    }
+
+    // Length of the body that follows the length prefix, which may have the compressed bit set.
+    public static int bodyLength(int prefix) throws IOException {
+        int length = prefix & ~COMPRESSED;
+        if (length > MAX_FRAME) {
+            throw new IOException("Frame of " + length + " bytes exceeds the maximum of " + MAX_FRAME);
+        }
+        return length;
+    }
+
+    // Reads one frame, compressed or not, and returns its payload.
+    public static byte[] readFrame(DataInputStream in, TrafficStats stats) throws IOException {
+        int length = in.readInt();
+        byte[] body = new byte[bodyLength(length)];
+        in.readFully(body);
+        stats.wireIn.add(4 + body.length);
+        if ((length & COMPRESSED) == 0) {
+            stats.rawIn.add(4 + body.length);
+            return body;
+        }
+        long start = System.nanoTime();
+        byte[] data = decompress(body);
+        stats.inflateNanos.add(System.nanoTime() - start);
+        stats.rawIn.add(4 + data.length);
+        return data;
+    }
+
+    // Writes data as one frame, compressed if compress is set and it pays off.
+    public static void writeFrame(DataOutputStream out, byte[] data, boolean compress, TrafficStats stats) throws IOException {
+        stats.rawOut.add(4 + data.length);
+        if (compress) {
+            long start = System.nanoTime();
+            byte[] frame = compress(data, 0, data.length);
+            stats.deflateNanos.add(System.nanoTime() - start);
+            if (frame != null) {
+                out.write(frame);
+                stats.wireOut.add(frame.length);
+                return;
+            }
+        }
+        out.writeInt(data.length);
+        out.write(data);
+        stats.wireOut.add(4 + data.length);
+    }
+}
@@ -0,0 +1,73 @@
+package org.chatroom;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Client side of the connection handshake, shared by the chat client and the load generator.
+//
+//   client -> server  room:string  lastSeq:i64  capabilities:i32  window:i32
+//   server -> client  capabilities:i32, then history chunks ended by an empty one,
+//                     the client answers each non-empty chunk with credit:i32
+//   client -> server  username:string
+//   server -> client  ready:u8, 0 if the username is taken in the room
+//
+// Strings are length:i32 followed by UTF-8 bytes.
+public final class Handshake {
+    private Handshake() {
+    }
+
+    // Joins room and receives its history after seq lastSeq. Each chunk is handed to
+    // chunkHandler before the next credit is granted, so at most window chunks are in flight
+    // regardless of how large the history is. Returns the capabilities the server accepted.
+    public static int join(DataInputStream in, DataOutputStream out, String room, long lastSeq, int capabilities,
+                           int window, Consumer<List<Message>> chunkHandler, TrafficStats traffic) throws IOException {
+        writeString(out, room);
+        out.writeLong(lastSeq);
+        out.writeInt(capabilities);
+        out.writeInt(window);
+        out.flush();
+        int accepted = in.readInt();
+        while (true) {
+            List<Message> chunk = MessageCodec.decodeList(Compression.readFrame(in, traffic));
+            if (chunk.isEmpty()) {
+                return accepted;
+            }
+            chunkHandler.accept(chunk);
+            out.writeInt(1);
+            out.flush();
+        }
+    }
+
+    // Returns false if the username is taken in the room.
+    public static boolean login(DataInputStream in, DataOutputStream out, String username) throws IOException {
+        writeString(out, username);
+        out.flush();
+        int ready = in.read();
+        if (ready < 0) {
+            throw new EOFException("Server closed the connection");
+        }
+        return ready != 0;
+    }
+
+    public static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] data = value.getBytes(UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    public static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > Compression.MAX_FRAME) {
+            throw new IOException("Malformed string of " + length + " bytes");
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return new String(data, UTF_8);
+    }
+}
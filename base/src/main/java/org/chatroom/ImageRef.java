@@ -0,0 +1,31 @@
+package org.chatroom;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+// Content of an image message once the image is in the blob store: the SHA-256 of its bytes
+// plus enough metadata to lay it out before the bytes are fetched.
+public class ImageRef {
+    public static final int HASH_BYTES = 32;
+
+    public final String hash;
+    public final int size;
+    public final int width;
+    public final int height;
+
+    public ImageRef(String hash, int size, int width, int height) {
+        this.hash = hash;
+        this.size = size;
+        this.width = width;
+        this.height = height;
+    }
+
+    public static String hashOf(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
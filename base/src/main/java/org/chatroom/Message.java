@@ -1,15 +1,30 @@
 package org.chatroom;
 
-import java.io.Serializable;
 import java.util.Date;
 
-public class Message implements Comparable<Message>, Serializable {
+public class Message implements Comparable<Message> {
+    public static final String DEFAULT_ROOM = "general";
+
+    // seq numbers are per room.
+    public String room = DEFAULT_ROOM;
+    // Assigned by the server when it accepts the message, 0 until then.
+    public long seq;
+    // Chosen by the sending client, so it can recognize the echo of its own message and the
+    // server can drop a message that is sent again. Echoed with the message, 0 if unset.
+    public long id;
     public String username;
     public Date date;
     public Object content;
 
     @Override
     public int compareTo(Message other) {
-        return date.compareTo(other.date);
+        int result = date.compareTo(other.date);
+        if (result == 0) {
+            result = Long.compare(seq, other.seq);
+        }
+        if (result == 0) {
+            result = username.compareTo(other.username);
+        }
+        return result;
     }
 }
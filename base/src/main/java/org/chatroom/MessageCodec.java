@@ -0,0 +1,244 @@
+package org.chatroom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Binary wire format for Message, shared by client and server:
+//
+//   version:u8  type:u8  seq:varint  id:varint  roomLength:varint  room:utf8
+//   usernameLength:varint  username:utf8  date:varint(epoch millis)  contentLength:varint  content
+//
+// where content is utf8 text, raw image bytes (an upload) or an image reference:
+//
+//   hash:32 bytes  size:varint  width:varint  height:varint
+//
+// Version 1 frames, which have no seq, version 2 frames, which have no room, and version 3
+// frames, which have no id, are still accepted and decode with seq 0, the default room and
+// id 0 respectively.
+//
+// A list (history payload) is a varint count followed by length-prefixed messages.
+public final class MessageCodec {
+    public static final byte VERSION = 4;
+    public static final byte TEXT = 1;
+    public static final byte IMAGE = 2;
+    public static final byte IMAGE_REF = 3;
+
+    private MessageCodec() {
+    }
+
+    public static byte[] encode(Message message) {
+        return encode(message, 0);
+    }
+
+    // Leaves headroom zero bytes in front of the message, e.g. for a frame length prefix.
+    public static byte[] encode(Message message, int headroom) {
+        byte[] room = message.room.getBytes(UTF_8);
+        byte[] username = message.username.getBytes(UTF_8);
+        byte type;
+        byte[] content;
+        if (message.content instanceof String text) {
+            type = TEXT;
+            content = text.getBytes(UTF_8);
+        } else if (message.content instanceof ImageRef ref) {
+            type = IMAGE_REF;
+            content = encodeRef(ref);
+        } else {
+            type = IMAGE;
+            content = (byte[]) message.content;
+        }
+        long date = message.date.getTime();
+
+        byte[] out = new byte[headroom + 2 + varLongSize(message.seq) + varLongSize(message.id) + bytesSize(room.length)
+                + bytesSize(username.length) + varLongSize(date) + bytesSize(content.length)];
+        int pos = headroom;
+        out[pos++] = VERSION;
+        out[pos++] = type;
+        pos = putVarLong(out, pos, message.seq);
+        pos = putVarLong(out, pos, message.id);
+        pos = putBytes(out, pos, room);
+        pos = putBytes(out, pos, username);
+        pos = putVarLong(out, pos, date);
+        putBytes(out, pos, content);
+        return out;
+    }
+
+    public static Message decode(byte[] data) {
+        return decode(data, 0, data.length);
+    }
+
+    // Only allocates the Message itself and its fields.
+    public static Message decode(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int pos = offset;
+        check(pos + 2, end);
+        byte version = data[pos++];
+        if (version < 1 || version > VERSION) {
+            throw new IllegalArgumentException("Unsupported message version " + version);
+        }
+        byte type = data[pos++];
+
+        Message message = new Message();
+        if (version >= 2) {
+            message.seq = getVarLong(data, pos, end);
+            pos += varLongSize(message.seq);
+        }
+        if (version >= 4) {
+            message.id = getVarLong(data, pos, end);
+            pos += varLongSize(message.id);
+        }
+        if (version >= 3) {
+            int roomLength = getLength(data, pos, end);
+            pos += varLongSize(roomLength);
+            message.room = new String(data, pos, roomLength, UTF_8);
+            pos += roomLength;
+        }
+        int usernameLength = getLength(data, pos, end);
+        pos += varLongSize(usernameLength);
+        message.username = new String(data, pos, usernameLength, UTF_8);
+        pos += usernameLength;
+
+        long date = getVarLong(data, pos, end);
+        pos += varLongSize(date);
+        message.date = new Date(date);
+
+        int contentLength = getLength(data, pos, end);
+        pos += varLongSize(contentLength);
+        message.content = switch (type) {
+            case TEXT -> new String(data, pos, contentLength, UTF_8);
+            case IMAGE -> Arrays.copyOfRange(data, pos, pos + contentLength);
+            case IMAGE_REF -> decodeRef(data, pos, pos + contentLength);
+            default -> throw new IllegalArgumentException("Unknown message type " + type);
+        };
+        return message;
+    }
+
+    private static byte[] encodeRef(ImageRef ref) {
+        byte[] out = new byte[ImageRef.HASH_BYTES + varLongSize(ref.size) + varLongSize(ref.width) + varLongSize(ref.height)];
+        Protocol.putHash(out, 0, ref.hash);
+        int pos = putVarLong(out, ImageRef.HASH_BYTES, ref.size);
+        pos = putVarLong(out, pos, ref.width);
+        putVarLong(out, pos, ref.height);
+        return out;
+    }
+
+    private static ImageRef decodeRef(byte[] data, int pos, int end) {
+        check(pos + ImageRef.HASH_BYTES, end);
+        String hash = Protocol.getHash(data, pos);
+        pos += ImageRef.HASH_BYTES;
+        int size = getInt(data, pos, end);
+        pos += varLongSize(size);
+        int width = getInt(data, pos, end);
+        pos += varLongSize(width);
+        int height = getInt(data, pos, end);
+        return new ImageRef(hash, size, width, height);
+    }
+
+    public static byte[] encodeList(List<Message> messages) {
+        List<byte[]> encoded = new ArrayList<>(messages.size());
+        int size = varLongSize(messages.size());
+        for (Message message : messages) {
+            byte[] bytes = encode(message);
+            encoded.add(bytes);
+            size += bytesSize(bytes.length);
+        }
+        byte[] out = new byte[size];
+        int pos = putVarLong(out, 0, messages.size());
+        for (byte[] bytes : encoded) {
+            pos = putBytes(out, pos, bytes);
+        }
+        return out;
+    }
+
+    public static List<Message> decodeList(byte[] data) {
+        return decodeList(data, 0);
+    }
+
+    // A list that starts at offset and runs to the end of data.
+    public static List<Message> decodeList(byte[] data, int offset) {
+        int pos = offset;
+        // Every message takes at least a byte, which bounds the count like a length.
+        int count = getLength(data, pos, data.length);
+        pos += varLongSize(count);
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = getLength(data, pos, data.length);
+            pos += varLongSize(length);
+            messages.add(decode(data, pos, length));
+            pos += length;
+        }
+        return messages;
+    }
+
+    public static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static int putVarLong(byte[] out, int pos, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    // Only the shortest form, the one putVarLong writes, is accepted, so callers can advance by
+    // varLongSize(value). Anything else is rejected rather than misread.
+    public static long getVarLong(byte[] data, int pos, int end) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            check(pos + 1, end);
+            byte b = data[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (b == 0 && shift > 0 || shift == 63 && b > 1) {
+                    throw new IllegalArgumentException("Malformed varint");
+                }
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    // A length prefix at pos, which must fit in what is left before end after the prefix itself.
+    private static int getLength(byte[] data, int pos, int end) {
+        long length = getVarLong(data, pos, end);
+        if (length < 0 || length > end - pos - varLongSize(length)) {
+            throw new IllegalArgumentException("Malformed length " + length);
+        }
+        return (int) length;
+    }
+
+    private static int getInt(byte[] data, int pos, int end) {
+        long value = getVarLong(data, pos, end);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Malformed value " + value);
+        }
+        return (int) value;
+    }
+
+    private static int bytesSize(int length) {
+        return varLongSize(length) + length;
+    }
+
+    private static int putBytes(byte[] out, int pos, byte[] bytes) {
+        pos = putVarLong(out, pos, bytes.length);
+        System.arraycopy(bytes, 0, out, pos, bytes.length);
+        return pos + bytes.length;
+    }
+
+    private static void check(int needed, int end) {
+        if (needed > end || needed < 0) {
+            throw new IllegalArgumentException("Truncated message");
+        }
+    }
+}
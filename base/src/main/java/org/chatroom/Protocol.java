@@ -0,0 +1,117 @@
+package org.chatroom;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Frames other than messages. They are told apart by their first byte: a message frame starts
+// with its codec version, which stays below 0x40.
+//
+//   FETCH_BLOB     client -> server  kind:u8  hash:32 bytes
+//   BLOB           server -> client  kind:u8  hash:32 bytes  data:rest of frame (empty if unknown)
+//   SEARCH         client -> server  kind:u8  id:i32  offset:i32  limit:i32  query:utf8 rest of frame
+//   SEARCH_RESULT  server -> client  kind:u8  id:i32  more:u8  messages:list, see MessageCodec
+//   RESYNC         server -> client  kind:u8  seq:i64
+//
+// A search covers the text messages of the connection's room, best match first. The result
+// answers the search with the same id, more is 1 if there are matches after this page.
+//
+// RESYNC says the server dropped frames queued for a slow connection, seq is the lowest
+// message seq among them or 0 if none were messages. The client reconnects and syncs history
+// from before seq, requests still waiting for an answer are lost.
+public final class Protocol {
+    public static final byte FETCH_BLOB = 0x40;
+    public static final byte BLOB = 0x41;
+    public static final byte SEARCH = 0x42;
+    public static final byte SEARCH_RESULT = 0x43;
+    public static final byte RESYNC = 0x44;
+
+    private Protocol() {
+    }
+
+    public static byte[] fetchBlob(String hash) {
+        byte[] out = new byte[1 + ImageRef.HASH_BYTES];
+        out[0] = FETCH_BLOB;
+        putHash(out, 1, hash);
+        return out;
+    }
+
+    public static byte[] blob(String hash, byte[] data) {
+        byte[] out = new byte[1 + ImageRef.HASH_BYTES + data.length];
+        out[0] = BLOB;
+        putHash(out, 1, hash);
+        System.arraycopy(data, 0, out, 1 + ImageRef.HASH_BYTES, data.length);
+        return out;
+    }
+
+    // The hash carried by a FETCH_BLOB or BLOB frame.
+    public static String hash(byte[] frame) {
+        return getHash(frame, 1);
+    }
+
+    public static byte[] blobData(byte[] frame) {
+        return Arrays.copyOfRange(frame, 1 + ImageRef.HASH_BYTES, frame.length);
+    }
+
+    public static byte[] search(int id, String query, int offset, int limit) {
+        byte[] text = query.getBytes(UTF_8);
+        return ByteBuffer.allocate(13 + text.length).put(SEARCH).putInt(id).putInt(offset).putInt(limit).put(text).array();
+    }
+
+    public static byte[] searchResult(int id, boolean more, List<Message> messages) {
+        byte[] list = MessageCodec.encodeList(messages);
+        return ByteBuffer.allocate(6 + list.length).put(SEARCH_RESULT).putInt(id).put((byte) (more ? 1 : 0)).put(list).array();
+    }
+
+    // The id of a SEARCH or SEARCH_RESULT frame.
+    public static int searchId(byte[] frame) {
+        return ByteBuffer.wrap(frame).getInt(1);
+    }
+
+    public static int searchOffset(byte[] frame) {
+        return ByteBuffer.wrap(frame).getInt(5);
+    }
+
+    public static int searchLimit(byte[] frame) {
+        return ByteBuffer.wrap(frame).getInt(9);
+    }
+
+    public static String searchQuery(byte[] frame) {
+        return new String(frame, 13, frame.length - 13, UTF_8);
+    }
+
+    public static boolean searchMore(byte[] frame) {
+        return frame[5] != 0;
+    }
+
+    public static List<Message> searchMessages(byte[] frame) {
+        return MessageCodec.decodeList(frame, 6);
+    }
+
+    public static byte[] resync(long seq) {
+        return ByteBuffer.allocate(9).put(RESYNC).putLong(seq).array();
+    }
+
+    // The lowest dropped seq of a RESYNC frame, 0 if only other frames were dropped.
+    public static long resyncSeq(byte[] frame) {
+        return ByteBuffer.wrap(frame).getLong(1);
+    }
+
+    static void putHash(byte[] out, int pos, String hash) {
+        byte[] bytes = HexFormat.of().parseHex(hash);
+        if (bytes.length != ImageRef.HASH_BYTES) {
+            throw new IllegalArgumentException("Invalid image hash " + hash);
+        }
+        System.arraycopy(bytes, 0, out, pos, bytes.length);
+    }
+
+    static String getHash(byte[] data, int pos) {
+        if (pos + ImageRef.HASH_BYTES > data.length) {
+            throw new IllegalArgumentException("Truncated frame");
+        }
+        return HexFormat.of().formatHex(data, pos, pos + ImageRef.HASH_BYTES);
+    }
+}
@@ -0,0 +1,26 @@
+package org.chatroom;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Bytes moved over one connection, before (raw) and after (wire) compression, and the time
+// spent compressing and decompressing them.
+public class TrafficStats {
+    public final LongAdder rawIn = new LongAdder();
+    public final LongAdder wireIn = new LongAdder();
+    public final LongAdder rawOut = new LongAdder();
+    public final LongAdder wireOut = new LongAdder();
+    public final LongAdder deflateNanos = new LongAdder();
+    public final LongAdder inflateNanos = new LongAdder();
+
+    @Override
+    public String toString() {
+        return String.format("in %d/%d bytes (%.0f%%), out %d/%d bytes (%.0f%%), deflate %d ms, inflate %d ms",
+                wireIn.sum(), rawIn.sum(), ratio(wireIn.sum(), rawIn.sum()),
+                wireOut.sum(), rawOut.sum(), ratio(wireOut.sum(), rawOut.sum()),
+                deflateNanos.sum() / 1_000_000, inflateNanos.sum() / 1_000_000);
+    }
+
+    private static double ratio(long wire, long raw) {
+        return raw == 0 ? 100 : 100.0 * wire / raw;
+    }
+}
@@ -0,0 +1,142 @@
+package org.chatroom;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Every kind of message survives a round trip, and malformed input is rejected with an
+// IllegalArgumentException instead of being misread or allocating what a length claims.
+class MessageCodecTest {
+    private static final String HASH = "ab".repeat(ImageRef.HASH_BYTES);
+
+    @Test
+    void textRoundTrip() {
+        Message message = message("grüße, 世界");
+        message.seq = Long.MAX_VALUE;
+        message.id = 1L << 62;
+        Message decoded = MessageCodec.decode(MessageCodec.encode(message));
+        assertFields(message, decoded);
+        assertEquals(message.content, decoded.content);
+    }
+
+    @Test
+    void imageRefRoundTrip() {
+        Message message = message(new ImageRef(HASH, 123456, 640, 480));
+        ImageRef decoded = (ImageRef) MessageCodec.decode(MessageCodec.encode(message)).content;
+        assertEquals(HASH, decoded.hash);
+        assertEquals(123456, decoded.size);
+        assertEquals(640, decoded.width);
+        assertEquals(480, decoded.height);
+    }
+
+    @Test
+    void uploadRoundTrip() {
+        byte[] data = {0, 1, 2, (byte) 0xFF};
+        Message decoded = MessageCodec.decode(MessageCodec.encode(message(data)));
+        assertArrayEquals(data, (byte[]) decoded.content);
+    }
+
+    @Test
+    void listRoundTrip() {
+        List<Message> messages = List.of(message("one"), message(""), message("three"));
+        for (int i = 0; i < messages.size(); i++) {
+            messages.get(i).seq = i + 1;
+        }
+        List<Message> decoded = MessageCodec.decodeList(MessageCodec.encodeList(messages));
+        assertEquals(messages.size(), decoded.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertFields(messages.get(i), decoded.get(i));
+            assertEquals(messages.get(i).content, decoded.get(i).content);
+        }
+    }
+
+    @Test
+    void headroomIsLeftEmpty() {
+        byte[] data = MessageCodec.encode(message("hello"), 4);
+        assertArrayEquals(new byte[4], Arrays.copyOf(data, 4));
+        assertEquals("hello", MessageCodec.decode(data, 4, data.length - 4).content);
+    }
+
+    @Test
+    void varLongRoundTrip() {
+        for (long value : new long[]{0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1, Long.MIN_VALUE}) {
+            byte[] out = new byte[10];
+            int end = MessageCodec.putVarLong(out, 0, value);
+            assertEquals(MessageCodec.varLongSize(value), end);
+            assertEquals(value, MessageCodec.getVarLong(out, 0, end));
+        }
+    }
+
+    @Test
+    void rejectsNonShortestVarLong() {
+        // 0 and 1 with a redundant continuation byte.
+        assertMalformed(() -> MessageCodec.getVarLong(new byte[]{(byte) 0x80, 0}, 0, 2));
+        assertMalformed(() -> MessageCodec.getVarLong(new byte[]{(byte) 0x81, 0}, 0, 2));
+        // The tenth byte only has room for the top bit.
+        byte[] tooWide = new byte[10];
+        Arrays.fill(tooWide, 0, 9, (byte) 0xFF);
+        tooWide[9] = 2;
+        assertMalformed(() -> MessageCodec.getVarLong(tooWide, 0, 10));
+        // Still continuing after ten bytes.
+        byte[] tooLong = new byte[11];
+        Arrays.fill(tooLong, (byte) 0x80);
+        assertMalformed(() -> MessageCodec.getVarLong(tooLong, 0, 11));
+    }
+
+    @Test
+    void rejectsLengthsPastTheEnd() {
+        // A room length of 2^31 in a frame of a few bytes.
+        byte[] data = {MessageCodec.VERSION, MessageCodec.TEXT, 0, 0, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x08, 'a'};
+        assertMalformed(() -> MessageCodec.decode(data));
+        // A list that claims more messages than it has bytes.
+        assertMalformed(() -> MessageCodec.decodeList(new byte[]{(byte) 0xFF, (byte) 0xFF, 0x03}));
+    }
+
+    @Test
+    void rejectsEveryTruncation() {
+        byte[] data = MessageCodec.encode(message(new ImageRef(HASH, 1, 2, 3)));
+        for (int length = 0; length < data.length; length++) {
+            int truncated = length;
+            assertMalformed(() -> MessageCodec.decode(data, 0, truncated));
+        }
+    }
+
+    @Test
+    void rejectsUnknownVersionAndType() {
+        byte[] data = MessageCodec.encode(message("hello"));
+        data[0] = MessageCodec.VERSION + 1;
+        assertMalformed(() -> MessageCodec.decode(data));
+        data[0] = MessageCodec.VERSION;
+        data[1] = 9;
+        assertMalformed(() -> MessageCodec.decode(data));
+    }
+
+    private static Message message(Object content) {
+        Message message = new Message();
+        message.room = "room";
+        message.seq = 42;
+        message.id = 7;
+        message.username = "alice";
+        message.date = new Date(1_700_000_000_000L);
+        message.content = content;
+        return message;
+    }
+
+    private static void assertFields(Message expected, Message actual) {
+        assertEquals(expected.room, actual.room);
+        assertEquals(expected.seq, actual.seq);
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.username, actual.username);
+        assertEquals(expected.date, actual.date);
+    }
+
+    private static void assertMalformed(Runnable decode) {
+        assertThrows(IllegalArgumentException.class, decode::run);
+    }
+}
@@ -0,0 +1,61 @@
+package org.chatroom;
+
+import org.apache.commons.lang3.SerializationUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Message encode/decode with MessageCodec against the Java serialization it replaced.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    // 0 means a 5-character text message, anything else an image of that many bytes.
+    @Param({"0", "65536"})
+    public int imageSize;
+
+    private Message message;
+    private byte[] encoded;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() {
+        message = new Message();
+        message.username = "alice";
+        message.date = new Date();
+        if (imageSize == 0) {
+            message.content = "hello";
+        } else {
+            byte[] image = new byte[imageSize];
+            ThreadLocalRandom.current().nextBytes(image);
+            message.content = image;
+        }
+        encoded = MessageCodec.encode(message);
+        serialized = SerializationUtils.serialize(message);
+    }
+
+    @Benchmark
+    public byte[] codecEncode() {
+        return MessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public Message codecDecode() {
+        return MessageCodec.decode(encoded);
+    }
+
+    @Benchmark
+    public byte[] serializationEncode() {
+        return SerializationUtils.serialize(message);
+    }
+
+    @Benchmark
+    public Message serializationDecode() {
+        return SerializationUtils.deserialize(serialized);
+    }
+}
@@ -0,0 +1,92 @@
+package org.chatroom;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// The broadcast loop: ChatServer.deliverLocal of one message to a room of clients. Every
+// session runs its real writer thread into a loopback socket that is drained on the other
+// end, so the cost includes contention with the writers.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+    @Param({"1", "16", "256"})
+    public int clients;
+
+    private ServerSocketChannel server;
+    private final List<SocketChannel> peers = new ArrayList<>();
+    private final List<Session> sessions = new ArrayList<>();
+    private ExecutorService readers;
+    private Room room;
+    private Frame frame;
+    private long seq;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        readers = Executors.newVirtualThreadPerTaskExecutor();
+        room = new Room(Message.DEFAULT_ROOM, 0);
+        for (int i = 0; i < clients; i++) {
+            SocketChannel peer = SocketChannel.open(server.getLocalAddress());
+            SocketChannel channel = server.accept();
+            Session session = new Session("user" + i, room, channel, new DataOutputStream(Channels.newOutputStream(channel)), false, new TrafficStats());
+            room.sessionsByName().put(session.username(), session);
+            session.start();
+            sessions.add(session);
+            peers.add(peer);
+            readers.execute(() -> drain(peer));
+        }
+        Message message = new Message();
+        message.username = "alice";
+        message.date = new Date();
+        message.content = "hello there, what do you think about the meeting tomorrow morning?";
+        message.seq = 1;
+        frame = Frame.of(message);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Session session : sessions) {
+            session.close();
+        }
+        for (SocketChannel peer : peers) {
+            peer.close();
+        }
+        server.close();
+        readers.shutdownNow();
+    }
+
+    @Benchmark
+    public void fanOut() {
+        room.recentHistory().committed(++seq);
+        ChatServer.deliverLocal(room, seq, frame);
+    }
+
+    private static void drain(SocketChannel peer) {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try {
+            while (peer.read(buffer) >= 0) {
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            // Closed in tearDown.
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.chatroom;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Catch-up sync on the server: a room's whole history read from each MessageStore, an
+// embedded H2 database in PostgreSQL mode and the append-only log in a temporary directory,
+// and through streamHistory from the recent history window. Chunks are encoded the way the
+// history writer sends them.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HistoryBenchmark {
+    @Param({"1000", "10000"})
+    public int messages;
+
+    @Param({"jdbc", "log"})
+    public String store;
+
+    private MessageStore messageStore;
+    private Path dir;
+    private Room room;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        if ("log".equals(store)) {
+            dir = Files.createTempDirectory("history");
+            messageStore = new LogMessageStore(dir);
+        } else {
+            messageStore = new JdbcMessageStore(Stores.h2("history" + messages));
+        }
+        ChatServer.useStore(messageStore);
+        room = new Room(Message.DEFAULT_ROOM, 0);
+        List<Message> generated = Messages.generate(Message.DEFAULT_ROOM, 1, messages, new Random(42));
+        messageStore.append(generated, Map.of());
+        for (Message message : generated) {
+            room.recentHistory().committed(message.seq);
+            room.recentHistory().add(message.seq, Frame.of(message));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        messageStore.close();
+        if (dir != null) {
+            Stores.delete(dir);
+        }
+    }
+
+    @Benchmark
+    public void store(Blackhole bh) throws IOException {
+        messageStore.stream(Message.DEFAULT_ROOM, 0, Long.MAX_VALUE, sink(bh));
+    }
+
+    @Benchmark
+    public void recentHistory(Blackhole bh) throws IOException {
+        ChatServer.streamHistory(room, 0, sink(bh));
+    }
+
+    private static ChatServer.HistorySink sink(Blackhole bh) {
+        return new ChatServer.HistorySink() {
+            @Override
+            public void accept(List<Message> chunk) {
+                bh.consume(MessageCodec.encodeList(chunk));
+            }
+
+            @Override
+            public void acceptEncoded(List<Frame> chunk) {
+                bh.consume(chunk);
+            }
+        };
+    }
+}
@@ -0,0 +1,111 @@
+package org.chatroom;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Moves MESSAGES frames from several client threads to the broadcaster thread, comparing the
+// original synchronized PipedOutputStream hop with IngestRing.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IngestBenchmark {
+    private static final int MESSAGES = 8192;
+
+    @Param({"1", "4"})
+    public int producers;
+
+    @Param({"64", "1024"})
+    public int payloadSize;
+
+    private ExecutorService executor;
+    private byte[] payload;
+    private DataOutputStream pipeOut;
+    private DataInputStream pipeIn;
+    private IngestRing<Frame> ring;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        executor = Executors.newFixedThreadPool(producers);
+        payload = new byte[payloadSize];
+        PipedInputStream pipedIn = new PipedInputStream();
+        pipeOut = new DataOutputStream(new PipedOutputStream(pipedIn));
+        pipeIn = new DataInputStream(pipedIn);
+        ring = new IngestRing<>(4096);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void pipe(Blackhole bh) throws Exception {
+        List<Future<?>> futures = submit(() -> {
+            synchronized (pipeOut) {
+                pipeOut.writeInt(payload.length);
+                pipeOut.write(payload);
+            }
+            return null;
+        });
+        for (int i = 0; i < MESSAGES; i++) {
+            byte[] data = new byte[pipeIn.readInt()];
+            pipeIn.readFully(data);
+            bh.consume(data);
+        }
+        await(futures);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void ring(Blackhole bh) throws Exception {
+        List<Future<?>> futures = submit(() -> {
+            ring.put(Frame.of(payload));
+            return null;
+        });
+        int received = 0;
+        while (received < MESSAGES) {
+            received += ring.drainTo(bh::consume, 256);
+        }
+        await(futures);
+    }
+
+    private interface Send {
+        Object call() throws Exception;
+    }
+
+    private List<Future<?>> submit(Send send) {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int count = MESSAGES / producers + (p < MESSAGES % producers ? 1 : 0);
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < count; i++) {
+                    send.call();
+                }
+                return null;
+            }));
+        }
+        return futures;
+    }
+
+    private static void await(List<Future<?>> futures) throws Exception {
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+}
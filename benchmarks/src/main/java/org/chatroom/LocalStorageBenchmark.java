@@ -0,0 +1,71 @@
+package org.chatroom;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The client's sqlite storage on a temporary file: saving live messages one at a time, saving
+// a sync chunk in one transaction, and loading the latest and an older page for the list.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LocalStorageBenchmark {
+    private static final int STORED = 100_000;
+    private static final int CHUNK = 256;
+
+    private Path file;
+    private LocalStorage storage;
+    private Random random;
+    private long nextSeq;
+    private Message middle;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        file = Files.createTempFile("chat", ".db");
+        storage = new LocalStorage("jdbc:sqlite:" + file);
+        random = new Random(42);
+        for (nextSeq = 1; nextSeq <= STORED; nextSeq += CHUNK) {
+            storage.saveMessages(Messages.generate(Message.DEFAULT_ROOM, nextSeq, CHUNK, random));
+        }
+        middle = storage.loadLatest(Message.DEFAULT_ROOM, STORED / 2).get(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(Path.of(file + "-wal"));
+        Files.deleteIfExists(Path.of(file + "-shm"));
+    }
+
+    @Benchmark
+    public boolean saveMessage() throws SQLException {
+        return storage.saveMessage(Messages.generate(Message.DEFAULT_ROOM, nextSeq++, 1, random).get(0));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNK)
+    public List<Message> saveChunk() throws SQLException {
+        List<Message> chunk = Messages.generate(Message.DEFAULT_ROOM, nextSeq, CHUNK, random);
+        nextSeq += CHUNK;
+        return storage.saveMessages(chunk);
+    }
+
+    @Benchmark
+    public List<Message> loadLatest() throws SQLException {
+        return storage.loadLatest(Message.DEFAULT_ROOM, SyncService.PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<Message> loadBefore() throws SQLException {
+        return storage.loadBefore(middle, SyncService.PAGE_SIZE);
+    }
+}
@@ -0,0 +1,35 @@
+package org.chatroom;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+// Text messages of typical chat length for the benchmarks. Generated from a seeded Random so
+// every run, and every commit, works on the same data.
+final class Messages {
+    private static final String[] USERS = {"alice", "bob", "carol", "dave", "erin"};
+    private static final String WORDS = "hello there what do you think about the meeting tomorrow morning I think we should really talk about it later today ";
+    private static final long START = 1_700_000_000_000L;
+
+    private Messages() {
+    }
+
+    // count messages of room with seqs from firstSeq, one second apart.
+    static List<Message> generate(String room, long firstSeq, int count, Random random) {
+        List<Message> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Message message = new Message();
+            message.room = room;
+            message.seq = firstSeq + i;
+            // Client ids only have to be unique per user.
+            message.id = message.seq;
+            message.username = USERS[random.nextInt(USERS.length)];
+            message.date = new Date(START + message.seq * 1000);
+            int start = random.nextInt(WORDS.length() / 2);
+            message.content = WORDS.substring(start, start + 10 + random.nextInt(WORDS.length() / 2 - 10));
+            messages.add(message);
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,69 @@
+package org.chatroom;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The write-behind flush: appending one batch of messages, spread over a few rooms, to each
+// MessageStore. The log store fsyncs every batch, so its results depend on the disk under
+// the temporary directory.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PersistBenchmark {
+    private static final int ROOMS = 4;
+
+    @Param({"1", "256"})
+    public int batch;
+
+    @Param({"jdbc", "log"})
+    public String store;
+
+    private MessageStore messageStore;
+    private Path dir;
+    private Random random;
+    private long nextSeq;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        if ("log".equals(store)) {
+            dir = Files.createTempDirectory("persist");
+            messageStore = new LogMessageStore(dir);
+        } else {
+            messageStore = new JdbcMessageStore(Stores.h2("persist" + batch));
+        }
+        random = new Random(42);
+        nextSeq = 1;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        messageStore.close();
+        if (dir != null) {
+            Stores.delete(dir);
+        }
+    }
+
+    @Benchmark
+    public void append() throws IOException {
+        List<Message> messages = Messages.generate(Message.DEFAULT_ROOM, nextSeq, batch, random);
+        // Seqs are per room, so consecutive messages of a room stay consecutive.
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            message.room = "room-" + i % ROOMS;
+            message.seq = nextSeq + i / ROOMS;
+        }
+        nextSeq += (batch + ROOMS - 1) / ROOMS;
+        messageStore.append(messages, Map.of());
+    }
+}
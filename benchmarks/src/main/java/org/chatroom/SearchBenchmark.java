@@ -0,0 +1,82 @@
+package org.chatroom;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The first page of a search over a room's history: on the server from each MessageStore,
+// the log store's in-memory index and an embedded H2 database, which has no full-text index
+// and scans, and on the client from the sqlite FTS5 index.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+    private static final int PAGE = 20;
+
+    @Param({"10000"})
+    public int messages;
+
+    @Param({"jdbc", "log", "local"})
+    public String store;
+
+    @Param({"meeting", "should talk"})
+    public String query;
+
+    private MessageStore messageStore;
+    private LocalStorage localStorage;
+    private Path dir;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        List<Message> generated = Messages.generate(Message.DEFAULT_ROOM, 1, messages, new Random(42));
+        switch (store) {
+            case "log" -> {
+                dir = Files.createTempDirectory("search");
+                messageStore = new LogMessageStore(dir);
+            }
+            case "local" -> {
+                file = Files.createTempFile("chat", ".db");
+                localStorage = new LocalStorage("jdbc:sqlite:" + file);
+                localStorage.saveMessages(generated);
+            }
+            default -> messageStore = new JdbcMessageStore(Stores.h2("search" + query.length()));
+        }
+        if (messageStore != null) {
+            messageStore.append(generated, Map.of());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (messageStore != null) {
+            messageStore.close();
+        }
+        if (dir != null) {
+            Stores.delete(dir);
+        }
+        if (file != null) {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(Path.of(file + "-wal"));
+            Files.deleteIfExists(Path.of(file + "-shm"));
+        }
+    }
+
+    @Benchmark
+    public List<Message> firstPage() throws IOException, SQLException {
+        if (localStorage != null) {
+            return localStorage.search(Message.DEFAULT_ROOM, query, 0, PAGE + 1);
+        }
+        return messageStore.search(Message.DEFAULT_ROOM, query, 0, PAGE + 1);
+    }
+}
@@ -0,0 +1,37 @@
+package org.chatroom;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Setup shared by the suites that run against a MessageStore.
+final class Stores {
+    private Stores() {
+    }
+
+    // A pool on a new in-memory H2 database in PostgreSQL mode with the server schema.
+    static ConnectionPool h2(String name) throws SQLException {
+        ConnectionPool pool = new ConnectionPool("jdbc:h2:mem:" + name + ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+        try (ConnectionPool.PooledConnection pooled = pool.acquire(); Statement stmt = pooled.connection().createStatement()) {
+            stmt.execute("CREATE TABLE text_msg (id SERIAL PRIMARY KEY, room TEXT NOT NULL, seq BIGINT NOT NULL, client_id BIGINT NOT NULL DEFAULT 0, username TEXT NOT NULL, date BIGINT NOT NULL, text TEXT NOT NULL)");
+            stmt.execute("CREATE TABLE image_msg (id SERIAL PRIMARY KEY, room TEXT NOT NULL, seq BIGINT NOT NULL, client_id BIGINT NOT NULL DEFAULT 0, username TEXT NOT NULL, date BIGINT NOT NULL, hash TEXT NOT NULL, size INT NOT NULL, width INT NOT NULL, height INT NOT NULL)");
+            stmt.execute("CREATE TABLE blob (hash TEXT PRIMARY KEY, data BYTEA NOT NULL)");
+            stmt.execute("CREATE UNIQUE INDEX text_msg_room_seq ON text_msg (room, seq)");
+            stmt.execute("CREATE UNIQUE INDEX image_msg_room_seq ON image_msg (room, seq)");
+        }
+        return pool;
+    }
+
+    static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
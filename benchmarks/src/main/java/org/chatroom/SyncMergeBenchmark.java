@@ -0,0 +1,70 @@
+package org.chatroom;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The merge step of SyncService.start: a history chunk from the server applied to local
+// storage. ownPercent of the chunk are echoes of messages we sent and saved unsent, which
+// claim their seq instead of being inserted.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SyncMergeBenchmark {
+    private static final int CHUNK = 256;
+
+    @Param({"0", "25"})
+    public int ownPercent;
+
+    private Path file;
+    private LocalStorage storage;
+    private Random random;
+    private long nextSeq = 1;
+    private List<Message> chunk;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, SQLException {
+        file = Files.createTempFile("chat", ".db");
+        storage = new LocalStorage("jdbc:sqlite:" + file);
+        random = new Random(42);
+    }
+
+    // Prepares the next chunk, saving our own messages in it as unsent first.
+    @Setup(Level.Invocation)
+    public void nextChunk() throws SQLException {
+        chunk = Messages.generate(Message.DEFAULT_ROOM, nextSeq, CHUNK, random);
+        nextSeq += CHUNK;
+        for (int i = 0; i < CHUNK * ownPercent / 100; i++) {
+            Message echo = chunk.get(i * 100 / ownPercent);
+            Message unsent = new Message();
+            unsent.room = echo.room;
+            unsent.id = echo.id;
+            unsent.username = echo.username;
+            unsent.date = echo.date;
+            unsent.content = echo.content;
+            storage.saveMessage(unsent);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(Path.of(file + "-wal"));
+        Files.deleteIfExists(Path.of(file + "-shm"));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNK)
+    public List<Message> merge() throws SQLException {
+        return storage.saveMessages(chunk);
+    }
+}
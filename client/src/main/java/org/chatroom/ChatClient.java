@@ -3,23 +3,32 @@ package org.chatroom;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
+import javafx.scene.control.ScrollBar;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
 import javafx.scene.control.ScrollPane;
 import javafx.scene.control.TextArea;
 import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class ChatClient extends Application {
     private static final int MAX_IMAGE_SIZE = 1024 * 1024; // 1MB
@@ -27,18 +36,38 @@ public class ChatClient extends Application {
     private static final int MAX_IMAGE_HEIGHT = 1000;
 
     public static String username = "test";
+    public static String room = Message.DEFAULT_ROOM;
     public static Message lastMessage = null;
 
     private Stage primaryStage;
-    private VBox messageArea;
+    // Only rows in view get a MessageBox, cells are recycled while scrolling.
+    private ListView<MessageItem> messageArea;
     private TextArea inputField;
     private SyncService syncService;
+    private ImageCache imageCache;
+    private UiDispatcher dispatcher;
+    // Rows of our own messages the server has not echoed yet, by client id. Only used on the JavaFX thread.
+    private final Map<Long, MessageItem> unconfirmed = new HashMap<>();
+    // Set while a page of older messages is being loaded. Only used on the JavaFX thread.
+    private boolean loadingOlder;
 
     public static void main(String[] args) {
         launch(args);
     }
 
+    @Override
+    public void stop() {
+        if (syncService != null) {
+            syncService.stop();
+            System.out.println("Traffic: " + syncService.traffic());
+        }
+    }
+
     public static void alertError(String msg) {
+        if (!Platform.isFxApplicationThread()) {
+            Platform.runLater(() -> alertError(msg));
+            return;
+        }
         VBox errorBox = new VBox(5);
         errorBox.setPadding(new Insets(10));
         Label label = new Label("An error occurred:\n" + msg);
@@ -56,46 +85,67 @@ public class ChatClient extends Application {
         this.primaryStage = primaryStage;
         primaryStage.setTitle("Chat Client");
 
-        // Display a window to ask username, then set it to ChatClient.username
+        // Display a window to ask username and room, then set them to ChatClient.username and ChatClient.room
         VBox usernameBox = new VBox(5);
         usernameBox.setPadding(new Insets(10));
         usernameBox.getChildren().add(new Label("Enter your username:"));
         TextArea usernameField = new TextArea();
         usernameField.setPromptText("Username");
         usernameField.setPrefSize(200, 20);
+        TextArea roomField = new TextArea(Message.DEFAULT_ROOM);
+        roomField.setPromptText("Room");
+        roomField.setPrefSize(200, 20);
         usernameField.setOnKeyPressed(e -> {
             if (e.getCode().toString().equals("ENTER")) {
-                String username = usernameField.getText().trim();
-                if (!username.isEmpty()) {
-                    ChatClient.username = username;
-                    primaryStage.getScene().setRoot(new VBox());
-                    startChat();
-                }
+                join(usernameField.getText().trim(), roomField.getText().trim());
             }
         });
-        usernameBox.getChildren().add(usernameField);
-        Button usernameButton = new Button("Set Username");
-        usernameButton.setOnAction(e -> {
-            String username = usernameField.getText().trim();
-            if (!username.isEmpty()) {
-                ChatClient.username = username;
-                primaryStage.getScene().setRoot(new VBox());
-                startChat();
+        roomField.setOnKeyPressed(e -> {
+            if (e.getCode().toString().equals("ENTER")) {
+                join(usernameField.getText().trim(), roomField.getText().trim());
             }
         });
+        usernameBox.getChildren().add(usernameField);
+        usernameBox.getChildren().add(new Label("Room:"));
+        usernameBox.getChildren().add(roomField);
+        Button usernameButton = new Button("Join");
+        usernameButton.setOnAction(e -> join(usernameField.getText().trim(), roomField.getText().trim()));
         usernameBox.getChildren().add(usernameButton);
-        primaryStage.setScene(new Scene(usernameBox, 300, 100));
+        primaryStage.setScene(new Scene(usernameBox, 300, 170));
         primaryStage.show();
     }
 
+    private void join(String username, String room) {
+        if (username.isEmpty()) {
+            return;
+        }
+        ChatClient.username = username;
+        ChatClient.room = room.isEmpty() ? Message.DEFAULT_ROOM : room;
+        primaryStage.getScene().setRoot(new VBox());
+        startChat();
+    }
+
     void startChat() {
-        primaryStage.setTitle("Chat Client - " + username);
+        primaryStage.setTitle("Chat Client - " + username + " in #" + room);
 
         // Message display area
-        messageArea = new VBox();
-        ScrollPane scrollPane = new ScrollPane(messageArea);
-        scrollPane.setFitToWidth(true);
-        scrollPane.setHbarPolicy(ScrollPane.ScrollBarPolicy.NEVER);
+        messageArea = new ListView<>();
+        messageArea.setFocusTraversable(false);
+        messageArea.setCellFactory(list -> new MessageCell());
+
+        // Older history is loaded a page at a time when the list is scrolled to the top. The
+        // scroll bars exist once the list has its skin.
+        messageArea.skinProperty().addListener((obs, oldSkin, skin) -> {
+            for (Node node : messageArea.lookupAll(".scroll-bar")) {
+                if (node instanceof ScrollBar bar && bar.getOrientation() == Orientation.VERTICAL) {
+                    bar.valueProperty().addListener((o, oldValue, value) -> {
+                        if (value.doubleValue() == bar.getMin() && oldValue.doubleValue() != bar.getMin()) {
+                            displayOlder();
+                        }
+                    });
+                }
+            }
+        });
 
         // Input field
         inputField = new TextArea();
@@ -116,12 +166,26 @@ public class ChatClient extends Application {
         Button imageSendButton = new Button("+");
         imageSendButton.setOnAction(e -> sendImage());
 
+        // Search field
+        TextArea searchField = new TextArea();
+        searchField.setPromptText("Search messages...");
+        searchField.setPrefRowCount(1);
+        searchField.setOnKeyPressed(e -> {
+            if (e.getCode().toString().equals("ENTER")) {
+                e.consume();
+                search(searchField.getText().trim());
+            }
+        });
+        HBox searchBox = new HBox(5, searchField);
+        searchBox.setPadding(new Insets(10, 10, 0, 10));
+
         // Layout setup
         HBox inputBox = new HBox(5, inputField, imageSendButton, textSendButton);
         inputBox.setPadding(new Insets(10));
 
         BorderPane root = new BorderPane();
-        root.setCenter(scrollPane);
+        root.setTop(searchBox);
+        root.setCenter(messageArea);
         root.setBottom(inputBox);
 
         primaryStage.setScene(new Scene(root, 400, 600));
@@ -129,7 +193,10 @@ public class ChatClient extends Application {
 
         // Initialize SyncService
         try {
-            syncService = new SyncService((msg) -> Platform.runLater(() -> displayMessage(msg)));
+            dispatcher = new UiDispatcher(this::displayMessages, messageArea::refresh);
+            syncService = new SyncService(dispatcher::submit, (message, status) ->
+                    dispatcher.update(() -> updateStatus(message, status)));
+            imageCache = new ImageCache(syncService);
             syncService.start();
         } catch (Exception e) {
             alertError("Error initializing SyncService.\n" + e.getMessage());
@@ -143,6 +210,7 @@ public class ChatClient extends Application {
 
             // Send message to sync service
             Message message = new Message();
+            message.room = room;
             message.username = username;
             message.date = date;
             message.content = text;
@@ -197,32 +265,159 @@ public class ChatClient extends Application {
         }
         Date date = new Date();
         Message message = new Message();
+        message.room = room;
         message.username = username;
         message.date = date;
-        message.content = imageBytes;
-        syncService.sendMessage(message);
+        message.content = new ImageRef(ImageRef.hashOf(imageBytes), imageBytes.length, (int) image.getWidth(), (int) image.getHeight());
+        syncService.sendImage(message, imageBytes);
 
         // Display image in message area
         displayMessage(message);
     }
 
     public void displayMessage(Message message) {
-        if (message.content instanceof String) {
-            displayText(message.username, message.date, (String) message.content);
-        } else {
-            displayImage(message.username, message.date, new Image(new ByteArrayInputStream((byte[]) message.content)));
+        displayMessages(List.of(message));
+    }
+
+    // Appends the whole batch at once so the list is laid out and scrolled once.
+    public void displayMessages(List<Message> messages) {
+        List<MessageItem> items = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            items.add(item(message, lastMessage));
+            lastMessage = message;
         }
-        lastMessage = message;
+        messageArea.getItems().addAll(items);
+        messageArea.scrollTo(messageArea.getItems().size() - 1);
     }
 
-    // Don't call it directly, use displayMessage instead
-    private void displayText(String username, Date date, String text) {
-        messageArea.getChildren().add(new MessageBox(username, date, text, username.equals(ChatClient.username), lastMessage));
+    private void displayOlder() {
+        if (loadingOlder) {
+            return;
+        }
+        loadingOlder = true;
+        syncService.loadOlder(page -> dispatcher.run(() -> {
+            loadingOlder = false;
+            prependOlder(page);
+        }));
+    }
+
+    private void prependOlder(List<Message> page) {
+        if (page.isEmpty()) {
+            return;
+        }
+        List<MessageItem> items = new ArrayList<>(page.size() + 1);
+        Message previous = null;
+        for (Message message : page) {
+            items.add(item(message, previous));
+            previous = message;
+        }
+        // The first row so far was grouped as if nothing came before it.
+        List<MessageItem> current = messageArea.getItems();
+        if (!current.isEmpty()) {
+            MessageItem first = current.get(0);
+            MessageItem regrouped = new MessageItem(first.message, previous);
+            regrouped.status = first.status;
+            if (regrouped.status != null) {
+                unconfirmed.put(first.message.id, regrouped);
+            }
+            current.set(0, regrouped);
+        }
+        current.addAll(0, items);
+        // Keep the row that was on top in view.
+        messageArea.scrollTo(items.size());
+    }
+
+    private MessageItem item(Message message, Message previous) {
+        MessageItem item = new MessageItem(message, previous);
+        if (item.isCurrentUser && message.seq == 0) {
+            item.status = SyncService.Delivery.PENDING;
+            unconfirmed.put(message.id, item);
+        }
+        return item;
+    }
+
+    private void updateStatus(Message message, SyncService.Delivery status) {
+        MessageItem item = status == SyncService.Delivery.DELIVERED
+                ? unconfirmed.remove(message.id)
+                : unconfirmed.get(message.id);
+        if (item != null) {
+            item.status = status == SyncService.Delivery.DELIVERED ? null : status;
+        }
+    }
+
+    private class MessageCell extends ListCell<MessageItem> {
+        private final MessageBox messageBox = new MessageBox();
+
+        MessageCell() {
+            setStyle("-fx-background-color: transparent; -fx-padding: 0;");
+            // Take the width of the list instead of the content, so text wraps.
+            setPrefWidth(0);
+        }
+
+        @Override
+        protected void updateItem(MessageItem item, boolean empty) {
+            super.updateItem(item, empty);
+            if (empty || item == null) {
+                setGraphic(null);
+                return;
+            }
+            messageBox.bind(item);
+            if (item.message.content instanceof ImageRef ref) {
+                // The cell may show another item by the time the thumbnail is ready.
+                imageCache.thumbnail(ref, image -> {
+                    if (getItem() == item) {
+                        messageBox.setImage(image);
+                    }
+                });
+                messageBox.setOnImageClicked(() -> imageCache.full(ref, ChatClient.this::openImage));
+            }
+            setGraphic(messageBox);
+        }
+    }
+
+    // Opens a window with the first page of matches, further pages are appended by "More".
+    private void search(String query) {
+        if (query.isEmpty()) {
+            return;
+        }
+        ListView<MessageItem> results = new ListView<>();
+        results.setFocusTraversable(false);
+        results.setCellFactory(list -> new MessageCell());
+        results.setPlaceholder(new Label("Searching..."));
+        Button moreButton = new Button("More");
+        moreButton.setDisable(true);
+        int[] page = {0};
+        Runnable load = () -> {
+            moreButton.setDisable(true);
+            syncService.search(query, page[0], result -> dispatcher.run(() -> {
+                for (Message message : result.messages()) {
+                    results.getItems().add(new MessageItem(message, null));
+                }
+                results.setPlaceholder(new Label("No messages found"));
+                page[0]++;
+                moreButton.setDisable(!result.more());
+            }));
+        };
+        moreButton.setOnAction(e -> load.run());
+        HBox moreBox = new HBox(moreButton);
+        moreBox.setPadding(new Insets(10));
+        BorderPane root = new BorderPane();
+        root.setCenter(results);
+        root.setBottom(moreBox);
+        Stage searchStage = new Stage();
+        searchStage.setTitle("Search - " + query);
+        searchStage.setScene(new Scene(root, 400, 500));
+        searchStage.show();
+        load.run();
     }
 
-    // Don't call it directly, use displayMessage instead
-    private void displayImage(String username, Date date, Image image) {
-        MessageBox messageBox = new MessageBox(username, date, image, username.equals(ChatClient.username), lastMessage);
-        messageArea.getChildren().add(messageBox);
+    private void openImage(Image image) {
+        ImageView imageView = new ImageView(image);
+        imageView.setPreserveRatio(true);
+        ScrollPane scrollPane = new ScrollPane(imageView);
+        Stage imageStage = new Stage();
+        imageStage.setTitle("Image");
+        imageStage.setScene(new Scene(scrollPane, Math.min(image.getWidth(), 1000) + 2, Math.min(image.getHeight(), 1000) + 2));
+        imageStage.show();
     }
 }
\ No newline at end of file
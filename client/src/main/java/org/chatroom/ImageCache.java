@@ -0,0 +1,97 @@
+package org.chatroom;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+
+import java.io.ByteArrayInputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+// Images decoded off the JavaFX thread. Thumbnails are decoded straight to the height they
+// are shown at and kept in an LRU bounded by pixel bytes, full resolution images are only
+// decoded when opened and are not cached.
+public class ImageCache {
+    public static final int THUMBNAIL_HEIGHT = 200;
+    public static long MAX_BYTES = Long.parseLong(System.getenv().getOrDefault("THUMBNAIL_CACHE_BYTES", String.valueOf(64 * 1024 * 1024)));
+
+    private final SyncService syncService;
+    private final ExecutorService decoder;
+    private final LinkedHashMap<String, Image> thumbnails = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    public ImageCache(SyncService syncService) {
+        this.syncService = syncService;
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        this.decoder = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "image-decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Calls callback on the JavaFX thread once the thumbnail is ready. Nothing is called if
+    // the image cannot be loaded.
+    public void thumbnail(ImageRef ref, Consumer<Image> callback) {
+        Image cached;
+        synchronized (thumbnails) {
+            cached = thumbnails.get(ref.hash);
+        }
+        if (cached != null) {
+            Platform.runLater(() -> callback.accept(cached));
+            return;
+        }
+        // Never scale small images up.
+        int height = ref.height > 0 ? Math.min(ref.height, THUMBNAIL_HEIGHT) : THUMBNAIL_HEIGHT;
+        load(ref, data -> {
+            Image image = new Image(new ByteArrayInputStream(data), 0, height, true, true);
+            if (image.isError()) {
+                System.err.println("Failed to decode image " + ref.hash + ": " + image.getException());
+                return;
+            }
+            cache(ref.hash, image);
+            Platform.runLater(() -> callback.accept(image));
+        });
+    }
+
+    public void full(ImageRef ref, Consumer<Image> callback) {
+        load(ref, data -> {
+            Image image = new Image(new ByteArrayInputStream(data));
+            if (image.isError()) {
+                System.err.println("Failed to decode image " + ref.hash + ": " + image.getException());
+                return;
+            }
+            Platform.runLater(() -> callback.accept(image));
+        });
+    }
+
+    // Reading the blob and decoding both run on the decoder pool. A blob fetched from the
+    // server arrives on the network thread, so decoding is handed back to the pool.
+    private void load(ImageRef ref, Consumer<byte[]> decode) {
+        decoder.execute(() -> syncService.loadImage(ref, data -> {
+            if (data != null) {
+                decoder.execute(() -> decode.accept(data));
+            }
+        }));
+    }
+
+    private void cache(String hash, Image image) {
+        synchronized (thumbnails) {
+            Image old = thumbnails.put(hash, image);
+            bytes += sizeOf(image) - (old == null ? 0 : sizeOf(old));
+            Iterator<Map.Entry<String, Image>> it = thumbnails.entrySet().iterator();
+            while (bytes > MAX_BYTES && it.hasNext()) {
+                bytes -= sizeOf(it.next().getValue());
+                it.remove();
+            }
+        }
+    }
+
+    // Decoded images take 4 bytes per pixel.
+    private static long sizeOf(Image image) {
+        return (long) image.getWidth() * (long) image.getHeight() * 4;
+    }
+}
@@ -2,107 +2,465 @@ package org.chatroom;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
+// Public methods are synchronized: the connection and its cached statements are shared by
+// the UI, network and image decoder threads.
 public class LocalStorage {
     private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
 
     public LocalStorage() throws SQLException {
-        connection = DriverManager.getConnection("jdbc:sqlite:chat.db");
+        this("jdbc:sqlite:chat.db");
+    }
+
+    public LocalStorage(String url) throws SQLException {
+        connection = DriverManager.getConnection(url);
+        configure();
         createTable();
     }
 
+    // WAL lets readers run alongside a write and, with synchronous=NORMAL, commits without
+    // an fsync each; only a checkpoint syncs. Losing the last commits on power failure is
+    // fine here since the server has every message.
+    private void configure() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = WAL");
+            stmt.execute("PRAGMA synchronous = NORMAL");
+            stmt.execute("PRAGMA temp_store = MEMORY");
+            stmt.execute("PRAGMA cache_size = -16384");
+        }
+    }
+
+    // Statements are prepared once and reused for the lifetime of the connection.
+    private PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt == null) {
+            stmt = connection.prepareStatement(sql);
+            statements.put(sql, stmt);
+        }
+        return stmt;
+    }
+
     private void createTable() throws SQLException {
         String textsSql = """
                 CREATE TABLE IF NOT EXISTS text_msg (
                     id INTEGER PRIMARY KEY AUTOINCREMENT,
+                    room TEXT NOT NULL DEFAULT 'general',
+                    seq INTEGER NOT NULL DEFAULT 0,
+                    client_id INTEGER NOT NULL DEFAULT 0,
                     username TEXT NOT NULL,
                     date INTEGER NOT NULL,
                     text TEXT NOT NULL
                 )
                 """;
-        String imagesSql = """
-                CREATE TABLE IF NOT EXISTS image_msg (
-                    id INTEGER PRIMARY KEY AUTOINCREMENT,
-                    username TEXT NOT NULL,
-                    date INTEGER NOT NULL,
-                    image BLOB NOT NULL
-                );
+        // Image bytes live in blob, keyed by their SHA-256, and are shared by every message
+        // that posts the same image. shared is set once the server is known to have the blob.
+        String blobsSql = """
+                CREATE TABLE IF NOT EXISTS blob (
+                    hash TEXT PRIMARY KEY,
+                    data BLOB NOT NULL,
+                    shared INTEGER NOT NULL DEFAULT 0
+                )
                 """;
         try (PreparedStatement stmt = connection.prepareStatement(textsSql)) {
             stmt.execute();
         }
-        try (PreparedStatement stmt = connection.prepareStatement(imagesSql)) {
+        createImageTable("image_msg");
+        try (PreparedStatement stmt = connection.prepareStatement(blobsSql)) {
             stmt.execute();
         }
+        migrateImages();
+        for (String table : new String[]{"text_msg", "image_msg"}) {
+            addSeqColumn(table);
+            addRoomColumn(table);
+            addClientIdColumn(table);
+            // seq is unique per room. Used to match the echo of a message we sent, see
+            // claimSeq, and to page through a room's history.
+            for (String sql : new String[]{
+                    "DROP INDEX IF EXISTS " + table + "_seq",
+                    "DROP INDEX IF EXISTS " + table + "_date",
+                    "CREATE UNIQUE INDEX IF NOT EXISTS " + table + "_room_seq ON " + table + " (room, seq) WHERE seq > 0",
+                    "CREATE INDEX IF NOT EXISTS " + table + "_room_date ON " + table + " (room, date)"}) {
+                try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                    stmt.execute();
+                }
+            }
+        }
+        createSearchIndex();
     }
 
-    public void saveMessage(Message message) throws SQLException {
-        if (message.content instanceof String) {
-            saveText(message.username, message.date, (String) message.content);
-        } else {
-            saveImage(message.username, message.date, (byte[]) message.content);
+    // Full-text index over text_msg.text. The FTS5 table stores no copy of the text, only the
+    // index, and the triggers keep it in step with every insert, so indexing is incremental.
+    // Databases from before the index get it built once from the existing messages.
+    private void createSearchIndex() throws SQLException {
+        boolean exists;
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT 1 FROM sqlite_master WHERE name = 'text_fts'");
+             ResultSet rs = stmt.executeQuery()) {
+            exists = rs.next();
+        }
+        for (String sql : new String[]{
+                "CREATE VIRTUAL TABLE IF NOT EXISTS text_fts USING fts5(text, content='text_msg', content_rowid='id')",
+                "CREATE TRIGGER IF NOT EXISTS text_fts_insert AFTER INSERT ON text_msg BEGIN "
+                        + "INSERT INTO text_fts (rowid, text) VALUES (new.id, new.text); END",
+                "CREATE TRIGGER IF NOT EXISTS text_fts_delete AFTER DELETE ON text_msg BEGIN "
+                        + "INSERT INTO text_fts (text_fts, rowid, text) VALUES ('delete', old.id, old.text); END",
+                "CREATE TRIGGER IF NOT EXISTS text_fts_update AFTER UPDATE OF text ON text_msg BEGIN "
+                        + "INSERT INTO text_fts (text_fts, rowid, text) VALUES ('delete', old.id, old.text); "
+                        + "INSERT INTO text_fts (rowid, text) VALUES (new.id, new.text); END"}) {
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.execute();
+            }
+        }
+        if (!exists) {
+            try (PreparedStatement stmt = connection.prepareStatement("INSERT INTO text_fts (text_fts) VALUES ('rebuild')")) {
+                stmt.execute();
+            }
         }
     }
 
-    private void saveText(String user, java.util.Date date, String text) throws SQLException {
-        String sql = "INSERT INTO text_msg (username, date, text) VALUES (?, ?, ?)";
+    private void createImageTable(String name) throws SQLException {
+        String sql = """
+                CREATE TABLE IF NOT EXISTS %s (
+                    id INTEGER PRIMARY KEY AUTOINCREMENT,
+                    room TEXT NOT NULL DEFAULT 'general',
+                    seq INTEGER NOT NULL DEFAULT 0,
+                    client_id INTEGER NOT NULL DEFAULT 0,
+                    username TEXT NOT NULL,
+                    date INTEGER NOT NULL,
+                    hash TEXT NOT NULL,
+                    size INTEGER NOT NULL,
+                    width INTEGER NOT NULL,
+                    height INTEGER NOT NULL
+                )
+                """.formatted(name);
         try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, user);
-            stmt.setLong(2, date.getTime());
-            stmt.setString(3, text);
             stmt.execute();
         }
     }
 
-    private void saveImage(String user, java.util.Date date, byte[] image) throws SQLException {
-        String sql = "INSERT INTO image_msg (username, date, image) VALUES (?, ?, ?)";
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, user);
-            stmt.setLong(2, date.getTime());
-            stmt.setBytes(3, image);
+    private boolean hasColumn(String table, String column) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("PRAGMA table_info(" + table + ")");
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                if (rs.getString("name").equals(column)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Databases created before the blob store kept image bytes inline in image_msg.
+    private void migrateImages() throws SQLException {
+        if (!hasColumn("image_msg", "image")) {
+            return;
+        }
+        boolean hasSeq = hasColumn("image_msg", "seq");
+        connection.setAutoCommit(false);
+        try {
+            try (PreparedStatement stmt = connection.prepareStatement("ALTER TABLE image_msg RENAME TO image_msg_old")) {
+                stmt.execute();
+            }
+            createImageTable("image_msg");
+            String selectSql = "SELECT " + (hasSeq ? "seq" : "0") + ", username, date, image FROM image_msg_old";
+            try (PreparedStatement select = connection.prepareStatement(selectSql);
+                 ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    byte[] image = rs.getBytes(4);
+                    String hash = ImageRef.hashOf(image);
+                    saveBlob(hash, image, rs.getLong(1) > 0);
+                    Message message = new Message();
+                    message.seq = rs.getLong(1);
+                    message.id = message.seq == 0 ? newClientId() : 0;
+                    message.username = rs.getString(2);
+                    message.date = new Date(rs.getLong(3));
+                    message.content = new ImageRef(hash, image.length, 0, 0);
+                    saveImage(message);
+                }
+            }
+            try (PreparedStatement stmt = connection.prepareStatement("DROP TABLE image_msg_old")) {
+                stmt.execute();
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    // Databases created before messages had sequence numbers lack the column.
+    private void addSeqColumn(String table) throws SQLException {
+        if (hasColumn(table, "seq")) {
+            return;
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "ALTER TABLE " + table + " ADD COLUMN seq INTEGER NOT NULL DEFAULT 0")) {
             stmt.execute();
         }
     }
 
-    public List<Message> loadMessages() throws SQLException {
-        ArrayList<Message> messages = new ArrayList<>();
-        messages.addAll(loadTexts());
-        messages.addAll(loadImages());
-        return messages;
+    // Databases created before rooms only had the default room.
+    private void addRoomColumn(String table) throws SQLException {
+        if (hasColumn(table, "room")) {
+            return;
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "ALTER TABLE " + table + " ADD COLUMN room TEXT NOT NULL DEFAULT '" + Message.DEFAULT_ROOM + "'")) {
+            stmt.execute();
+        }
     }
 
-    private ArrayList<Message> loadTexts() throws SQLException {
-        ArrayList<Message> texts = new ArrayList<>();
-        String sql = "SELECT username, date, text FROM text_msg";
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            try (ResultSet rs = stmt.executeQuery()) {
-                while (rs.next()) {
-                    Message message = new Message();
-                    message.username = rs.getString("username");
-                    message.date = new Date(rs.getLong("date"));
-                    message.content = rs.getString("text");
-                    texts.add(message);
+    // Databases created before client message ids. Messages still waiting for their echo get
+    // one now, they are matched by it when they are sent again.
+    private void addClientIdColumn(String table) throws SQLException {
+        if (hasColumn(table, "client_id")) {
+            return;
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "ALTER TABLE " + table + " ADD COLUMN client_id INTEGER NOT NULL DEFAULT 0")) {
+            stmt.execute();
+        }
+        List<Long> unsent = new ArrayList<>();
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT id FROM " + table + " WHERE seq = 0");
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                unsent.add(rs.getLong(1));
+            }
+        }
+        try (PreparedStatement stmt = connection.prepareStatement("UPDATE " + table + " SET client_id = ? WHERE id = ?")) {
+            for (long id : unsent) {
+                stmt.setLong(1, newClientId());
+                stmt.setLong(2, id);
+                stmt.execute();
+            }
+        }
+    }
+
+    // A random id for a message we send, never 0.
+    public static long newClientId() {
+        return ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+    }
+
+    // Returns false if the message was already stored. A message we sent ourselves is stored
+    // with seq 0 and gets its seq here when the server echoes it back, matched by client id.
+    public synchronized boolean saveMessage(Message message) throws SQLException {
+        String table = message.content instanceof String ? "text_msg" : "image_msg";
+        if (message.seq != 0 && message.id != 0 && claimSeq(table, message)) {
+            return false;
+        }
+        if (message.content instanceof String) {
+            return saveText(message);
+        } else {
+            return saveImage(message);
+        }
+    }
+
+    // Saves a whole sync chunk in one transaction and returns the messages that were new.
+    public synchronized List<Message> saveMessages(List<Message> messages) throws SQLException {
+        List<Message> saved = new ArrayList<>();
+        connection.setAutoCommit(false);
+        try {
+            for (Message message : messages) {
+                if (saveMessage(message)) {
+                    saved.add(message);
                 }
             }
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
         }
-        return texts;
+        return saved;
     }
 
-    private ArrayList<Message> loadImages() throws SQLException {
-        ArrayList<Message> images = new ArrayList<>();
-        String sql = "SELECT username, date, image FROM image_msg";
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            try (ResultSet rs = stmt.executeQuery()) {
-                while (rs.next()) {
-                    Message message = new Message();
-                    message.username = rs.getString("username");
-                    message.date = new Date(rs.getLong("date"));
-                    message.content = rs.getBytes("image");
-                    images.add(message);
+    private boolean claimSeq(String table, Message message) throws SQLException {
+        PreparedStatement stmt = prepare("UPDATE " + table + " SET seq = ? WHERE room = ? AND seq = 0 AND username = ? AND client_id = ?");
+        stmt.setLong(1, message.seq);
+        stmt.setString(2, message.room);
+        stmt.setString(3, message.username);
+        stmt.setLong(4, message.id);
+        return stmt.executeUpdate() > 0;
+    }
+
+    private boolean saveText(Message message) throws SQLException {
+        PreparedStatement stmt = prepare("INSERT OR IGNORE INTO text_msg (room, seq, client_id, username, date, text) VALUES (?, ?, ?, ?, ?, ?)");
+        stmt.setString(1, message.room);
+        stmt.setLong(2, message.seq);
+        stmt.setLong(3, message.id);
+        stmt.setString(4, message.username);
+        stmt.setLong(5, message.date.getTime());
+        stmt.setString(6, (String) message.content);
+        return stmt.executeUpdate() > 0;
+    }
+
+    private boolean saveImage(Message message) throws SQLException {
+        ImageRef image = (ImageRef) message.content;
+        PreparedStatement stmt = prepare("INSERT OR IGNORE INTO image_msg (room, seq, client_id, username, date, hash, size, width, height) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        stmt.setString(1, message.room);
+        stmt.setLong(2, message.seq);
+        stmt.setLong(3, message.id);
+        stmt.setString(4, message.username);
+        stmt.setLong(5, message.date.getTime());
+        stmt.setString(6, image.hash);
+        stmt.setInt(7, image.size);
+        stmt.setInt(8, image.width);
+        stmt.setInt(9, image.height);
+        return stmt.executeUpdate() > 0;
+    }
+
+    public synchronized void saveBlob(String hash, byte[] data, boolean shared) throws SQLException {
+        PreparedStatement stmt = prepare("INSERT INTO blob (hash, data, shared) VALUES (?, ?, ?) ON CONFLICT (hash) DO UPDATE SET shared = MAX(shared, excluded.shared)");
+        stmt.setString(1, hash);
+        stmt.setBytes(2, data);
+        stmt.setBoolean(3, shared);
+        stmt.execute();
+    }
+
+    // Returns null if the blob has not been fetched yet.
+    public synchronized byte[] loadBlob(String hash) throws SQLException {
+        PreparedStatement stmt = prepare("SELECT data FROM blob WHERE hash = ?");
+        stmt.setString(1, hash);
+        try (ResultSet rs = stmt.executeQuery()) {
+            return rs.next() ? rs.getBytes(1) : null;
+        }
+    }
+
+    // Whether the server already has this blob, so the image can be posted by reference.
+    public synchronized boolean isBlobShared(String hash) throws SQLException {
+        PreparedStatement stmt = prepare("SELECT shared FROM blob WHERE hash = ?");
+        stmt.setString(1, hash);
+        try (ResultSet rs = stmt.executeQuery()) {
+            return rs.next() && rs.getBoolean(1);
+        }
+    }
+
+    public synchronized void markBlobShared(String hash) throws SQLException {
+        PreparedStatement stmt = prepare("UPDATE blob SET shared = 1 WHERE hash = ?");
+        stmt.setString(1, hash);
+        stmt.execute();
+    }
+
+    public synchronized long maxSeq(String room) throws SQLException {
+        PreparedStatement stmt = prepare("SELECT MAX((SELECT IFNULL(MAX(seq), 0) FROM text_msg WHERE room = ?), (SELECT IFNULL(MAX(seq), 0) FROM image_msg WHERE room = ?))");
+        stmt.setString(1, room);
+        stmt.setString(2, room);
+        try (ResultSet rs = stmt.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    // The newest limit messages of room, oldest first.
+    public synchronized List<Message> loadLatest(String room, int limit) throws SQLException {
+        return loadPage(room, Long.MAX_VALUE, Long.MAX_VALUE, "", limit);
+    }
+
+    // The limit messages of the cursor's room that sort right before it, oldest first. Messages are ordered
+    // like Message.compareTo: by date, then seq, then username.
+    public synchronized List<Message> loadBefore(Message cursor, int limit) throws SQLException {
+        return loadPage(cursor.room, cursor.date.getTime(), cursor.seq, cursor.username, limit);
+    }
+
+    private List<Message> loadPage(String room, long date, long seq, String username, int limit) throws SQLException {
+        String sql = """
+                SELECT * FROM (
+                    SELECT seq, client_id, username, date, text, NULL AS hash, 0 AS size, 0 AS width, 0 AS height FROM text_msg
+                    WHERE room = ? AND (date, seq, username) < (?, ?, ?)
+                    ORDER BY date DESC, seq DESC, username DESC LIMIT ?
+                )
+                UNION ALL
+                SELECT * FROM (
+                    SELECT seq, client_id, username, date, NULL, hash, size, width, height FROM image_msg
+                    WHERE room = ? AND (date, seq, username) < (?, ?, ?)
+                    ORDER BY date DESC, seq DESC, username DESC LIMIT ?
+                )
+                ORDER BY date DESC, seq DESC, username DESC LIMIT ?
+                """;
+        PreparedStatement stmt = prepare(sql);
+        for (int i = 0; i < 2; i++) {
+            stmt.setString(i * 5 + 1, room);
+            stmt.setLong(i * 5 + 2, date);
+            stmt.setLong(i * 5 + 3, seq);
+            stmt.setString(i * 5 + 4, username);
+            stmt.setInt(i * 5 + 5, limit);
+        }
+        stmt.setInt(11, limit);
+        List<Message> messages = readMessages(stmt, room);
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    // Messages username posted in room that the server has not echoed back yet, oldest first.
+    public synchronized List<Message> loadUnsent(String room, String username) throws SQLException {
+        String sql = """
+                SELECT seq, client_id, username, date, text, NULL AS hash, 0 AS size, 0 AS width, 0 AS height FROM text_msg
+                WHERE room = ? AND seq = 0 AND username = ?
+                UNION ALL
+                SELECT seq, client_id, username, date, NULL, hash, size, width, height FROM image_msg
+                WHERE room = ? AND seq = 0 AND username = ?
+                ORDER BY date
+                """;
+        PreparedStatement stmt = prepare(sql);
+        stmt.setString(1, room);
+        stmt.setString(2, username);
+        stmt.setString(3, room);
+        stmt.setString(4, username);
+        return readMessages(stmt, room);
+    }
+
+    // Text messages of room containing every word of query, best match first by bm25, newer
+    // first among equals. Words are quoted so FTS5 query syntax in them is matched literally.
+    public synchronized List<Message> search(String room, String query, int offset, int limit) throws SQLException {
+        List<String> terms = new ArrayList<>();
+        for (String word : query.trim().split("\\s+")) {
+            if (!word.isEmpty()) {
+                terms.add('"' + word.replace("\"", "\"\"") + '"');
+            }
+        }
+        if (terms.isEmpty()) {
+            return new ArrayList<>();
+        }
+        String sql = """
+                SELECT m.seq, m.client_id, m.username, m.date, m.text, NULL AS hash, 0 AS size, 0 AS width, 0 AS height
+                FROM text_fts JOIN text_msg m ON m.id = text_fts.rowid
+                WHERE text_fts MATCH ? AND m.room = ?
+                ORDER BY bm25(text_fts), m.date DESC LIMIT ? OFFSET ?
+                """;
+        PreparedStatement stmt = prepare(sql);
+        stmt.setString(1, String.join(" ", terms));
+        stmt.setString(2, room);
+        stmt.setInt(3, limit);
+        stmt.setInt(4, offset);
+        return readMessages(stmt, room);
+    }
+
+    private static List<Message> readMessages(PreparedStatement stmt, String room) throws SQLException {
+        ArrayList<Message> messages = new ArrayList<>();
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                Message message = new Message();
+                message.room = room;
+                message.seq = rs.getLong("seq");
+                message.id = rs.getLong("client_id");
+                message.username = rs.getString("username");
+                message.date = new Date(rs.getLong("date"));
+                String hash = rs.getString("hash");
+                if (hash == null) {
+                    message.content = rs.getString("text");
+                } else {
+                    message.content = new ImageRef(hash, rs.getInt("size"), rs.getInt("width"), rs.getInt("height"));
                 }
+                messages.add(message);
             }
         }
-        return images;
+        return messages;
     }
 }
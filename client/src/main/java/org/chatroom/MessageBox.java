@@ -15,62 +15,76 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 
+// A list cell builds its box once and binds it to every item it shows, so scrolling only
+// updates labels instead of building new nodes.
 public class MessageBox extends AnchorPane {
-    private final Boolean isCurrentUser;
-    private final Boolean ignoreDate;
-    private final Boolean ignoreUsername;
-    private final VBox messageBox;
-    private final Node content;
-    private HBox usernameUi;
-    private Label dateLabel;
-
-    public MessageBox(String username, Date date, String text, Boolean isCurrentUser, Message lastMessage) {
-        this.isCurrentUser = isCurrentUser;
-        this.ignoreDate = lastMessage != null && lastMessage.date.getTime() / 60000 == date.getTime() / 60000;
-        this.ignoreUsername = lastMessage != null && ignoreDate && lastMessage.username.equals(username);
-
-        setDateAndUsername(username, date);
-
-        HBox bubble = createMessageBubble(text);
-        bubble.setAlignment(isCurrentUser ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
-        this.content = bubble;
+    private static final Insets GROUPED = new Insets(-20, 0, 0, 0);
+
+    private final VBox messageBox = new VBox(5);
+    private final Label dateLabel = new Label();
+    private final Label usernameLabel = new Label();
+    private final HBox usernameUi = new HBox(usernameLabel);
+    private final Label messageLabel = new Label();
+    private final HBox textBubble = createMessageBubble();
+    // A placeholder the size of the thumbnail until setImage is called.
+    private final Region placeholder = new Region();
+    private final ImageView imageView = new ImageView();
+    private final HBox imageBubble = new HBox();
+    private final Label statusLabel = new Label();
+    private final HBox statusUi = new HBox(statusLabel);
+
+    public MessageBox() {
+        dateLabel.setAlignment(Pos.CENTER);
+        dateLabel.setMaxWidth(Double.MAX_VALUE);
+        usernameLabel.setStyle("-fx-font-size: 8pt; -fx-font-weight: bold; -fx-padding-bottom: 0px;");
+        placeholder.setStyle("-fx-background-color: #e0e0e0; -fx-background-radius: 8;");
+        imageView.setPreserveRatio(true);
+        statusLabel.setStyle("-fx-font-size: 8pt; -fx-text-fill: gray;");
+        statusUi.setAlignment(Pos.CENTER_RIGHT);
+        this.addToPane();
+    }
 
+    public void bind(MessageItem item) {
+        Pos side = item.isCurrentUser ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT;
         ArrayList<Node> children = new ArrayList<>();
-        if (!ignoreDate) {
+        if (!item.ignoreDate) {
+            dateLabel.setText(formatDate(item.message.date));
             children.add(dateLabel);
         }
-        if (!ignoreUsername) {
+        if (!item.ignoreUsername) {
+            usernameLabel.setText(item.message.username);
+            usernameUi.setAlignment(side);
             children.add(usernameUi);
         }
-        children.add(content);
-        messageBox = new VBox(10, children.toArray(new Node[0]));
-        this.addToPane();
+        if (item.message.content instanceof String text) {
+            messageLabel.setText(text);
+            textBubble.setAlignment(side);
+            textBubble.setPadding(item.ignoreUsername ? GROUPED : Insets.EMPTY);
+            children.add(textBubble);
+        } else {
+            ImageRef image = (ImageRef) item.message.content;
+            int height = image.height > 0 ? Math.min(image.height, ImageCache.THUMBNAIL_HEIGHT) : ImageCache.THUMBNAIL_HEIGHT;
+            int width = image.height > 0 ? image.width * height / image.height : height;
+            placeholder.setPrefSize(width, height);
+            imageView.setImage(null);
+            imageBubble.getChildren().setAll(placeholder);
+            imageBubble.setAlignment(side);
+            children.add(imageBubble);
+        }
+        if (item.status != null) {
+            statusLabel.setText(item.status == SyncService.Delivery.PENDING ? "Sending..." : "Sent");
+            children.add(statusUi);
+        }
+        messageBox.getChildren().setAll(children);
     }
 
-    public MessageBox(String username, Date date, Image image, Boolean isCurrentUser, Message lastMessage) {
-        this.isCurrentUser = isCurrentUser;
-        this.ignoreDate = lastMessage != null && lastMessage.username.equals(username);
-        this.ignoreUsername = lastMessage != null && lastMessage.date.equals(date);
-
-        setDateAndUsername(username, date);
-
-        ImageView imageView = (new ImageView(image));
-        imageView.setFitHeight(200);
-        imageView.setPreserveRatio(true);
-        HBox bubble = new HBox(imageView);
-        bubble.setAlignment(isCurrentUser ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
-        this.content = bubble;
+    public void setImage(Image image) {
+        imageView.setImage(image);
+        imageBubble.getChildren().setAll(imageView);
+    }
 
-        ArrayList<Node> children = new ArrayList<>();
-        if (!ignoreDate) {
-            children.add(dateLabel);
-        }
-        if (!ignoreUsername) {
-            children.add(usernameUi);
-        }
-        children.add(content);
-        messageBox = new VBox(10, children.toArray(new Node[0]));
-        this.addToPane();
+    public void setOnImageClicked(Runnable action) {
+        imageBubble.setOnMouseClicked(e -> action.run());
     }
 
     public static String formatDate(Date date) {
@@ -106,22 +120,7 @@ public class MessageBox extends AnchorPane {
         this.setPrefSize(USE_COMPUTED_SIZE, USE_COMPUTED_SIZE);
     }
 
-    public void setDateAndUsername(String username, Date date) {
-        if (!ignoreDate) {
-            this.dateLabel = new Label(formatDate(date));
-            dateLabel.setAlignment(Pos.CENTER);
-            dateLabel.setMaxWidth(Double.MAX_VALUE);
-        }
-
-        if (!ignoreUsername) {
-            Label usernameLabel = new Label(username);
-            usernameLabel.setStyle("-fx-font-size: 8pt; -fx-font-weight: bold; -fx-padding-bottom: 0px;");
-            this.usernameUi = new HBox(usernameLabel);
-            usernameUi.setAlignment(isCurrentUser ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
-        }
-    }
-
-    private HBox createMessageBubble(String message) {
+    private HBox createMessageBubble() {
         StackPane bubble = new StackPane();
 
         Rectangle background = new Rectangle();
@@ -129,7 +128,6 @@ public class MessageBox extends AnchorPane {
         background.setArcHeight(15);
         background.setFill(Color.WHITE);
 
-        Label messageLabel = new Label(message);
         messageLabel.setWrapText(true);
         messageLabel.setPadding(new Insets(5, 10, 5, 10));
 
@@ -139,11 +137,6 @@ public class MessageBox extends AnchorPane {
         background.heightProperty().bind(bubble.heightProperty());
 
         bubble.setMaxWidth(Region.USE_PREF_SIZE);
-        HBox wrapper = new HBox(bubble);
-        wrapper.setAlignment(isCurrentUser ? Pos.CENTER_RIGHT : Pos.CENTER_LEFT);
-        if (ignoreUsername) {
-            wrapper.setPadding(new Insets(-20, 0, 0, 0));
-        }
-        return wrapper;
+        return new HBox(bubble);
     }
 }
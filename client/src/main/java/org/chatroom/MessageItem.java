@@ -0,0 +1,24 @@
+package org.chatroom;
+
+// Row model of the message list. Grouping with the previous message is decided once when
+// the message is appended, so list cells can be rebuilt from the item alone.
+public class MessageItem {
+    public final Message message;
+    public final boolean isCurrentUser;
+    public final boolean ignoreDate;
+    public final boolean ignoreUsername;
+    // Progress of our own messages until the server echoes them, null otherwise.
+    public SyncService.Delivery status;
+
+    public MessageItem(Message message, Message lastMessage) {
+        this.message = message;
+        this.isCurrentUser = message.username.equals(ChatClient.username);
+        if (message.content instanceof String) {
+            this.ignoreDate = lastMessage != null && lastMessage.date.getTime() / 60000 == message.date.getTime() / 60000;
+            this.ignoreUsername = lastMessage != null && ignoreDate && lastMessage.username.equals(message.username);
+        } else {
+            this.ignoreDate = lastMessage != null && lastMessage.username.equals(message.username);
+            this.ignoreUsername = lastMessage != null && lastMessage.date.equals(message.date);
+        }
+    }
+}
@@ -1,92 +1,239 @@
 package org.chatroom;
 
-import org.apache.commons.lang3.SerializationUtils;
-
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 public class RemoteStorage {
     public static String SERVER_HOST = System.getenv("SERVER_HOST");
     public static int SERVER_PORT = Integer.parseInt(System.getenv("SERVER_PORT"));
+    // Set to "off" to not offer compression to the server.
+    public static boolean COMPRESSION = !"off".equals(System.getenv("COMPRESSION"));
+    private static final int HISTORY_WINDOW = 4;
 
-    private final DataOutputStream out;
-    private final DataInputStream in;
     private final Consumer<Message> msgHandler;
-    private final Thread inboundThread;
+    // Callbacks waiting for a blob, by hash. Guarded by itself.
+    private final Map<String, List<Consumer<byte[]>>> blobRequests = new HashMap<>();
+    // Callbacks waiting for a search result, by request id. Guarded by itself.
+    private final Map<Integer, Consumer<byte[]>> searches = new HashMap<>();
+    private final AtomicInteger searchIds = new AtomicInteger();
+    // Guards socket and out, which are replaced on every connect.
+    private final Object writeLock = new Object();
+    private Socket socket;
+    private DataOutputStream out;
+    private volatile boolean connected;
+    // Set during the handshake if the server accepted compression.
+    private volatile boolean compress;
+    // Seq the next connect syncs history from at most, lowered by a RESYNC.
+    private volatile long resyncAfter = Long.MAX_VALUE;
+    private final TrafficStats traffic = new TrafficStats();
 
     public RemoteStorage(Consumer<Message> msgHandler) {
-        try {
-            Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
-            out = new DataOutputStream(socket.getOutputStream());
-            in = new DataInputStream(socket.getInputStream());
-        } catch (IOException e) {
-            ChatClient.alertError("Failed to connect to server: " + e.getMessage());
-            throw new RuntimeException(e);
-        }
         this.msgHandler = msgHandler;
-        inboundThread = new Thread(this::inboundLoop);
-        inboundThread.setDaemon(true);
     }
 
-    public void sendMessage(Message message) {
-        try {
-            byte[] data = SerializationUtils.serialize(message);
-            out.writeInt(data.length);
-            out.write(data);
-        } catch (IOException e) {
-            ChatClient.alertError("Failed to send data: " + e.getMessage());
+    public TrafficStats traffic() {
+        return traffic;
+    }
+
+    public boolean connected() {
+        return connected;
+    }
+
+    // Writes the messages with a single flush. Throws if the connection is down or breaks,
+    // the caller sends them again once connect succeeds.
+    public void send(List<Message> messages) throws IOException {
+        synchronized (writeLock) {
+            if (!connected) {
+                throw new IOException("Not connected");
+            }
+            try {
+                for (Message message : messages) {
+                    // Image uploads are already compressed.
+                    Compression.writeFrame(out, MessageCodec.encode(message), compress && !(message.content instanceof byte[]), traffic);
+                }
+                out.flush();
+            } catch (IOException e) {
+                disconnect(socket, e);
+                throw e;
+            }
         }
     }
 
-    public List<Message> loadMessages(Date lastSyncTime) {
-        List<Message> messages;
-        try {
-            out.writeLong(lastSyncTime.getTime());
-            out.flush();
-            int length = in.readInt();
-            byte[] data = new byte[length];
-            in.readFully(data);
-            messages = SerializationUtils.deserialize(data);
-        } catch (IOException e) {
-            ChatClient.alertError("Failed to receive data: " + e.getMessage());
-            throw new RuntimeException(e);
+    // Asks the server for the bytes of an image. callback runs on the inbound thread and gets
+    // null if the server does not have the blob, or right away if not connected, or once the
+    // connection is lost first. Concurrent requests for one hash share a fetch.
+    public void fetchBlob(String hash, Consumer<byte[]> callback) {
+        // Registered under writeLock, so disconnect either sees the callback or we see it closed.
+        synchronized (writeLock) {
+            if (connected) {
+                boolean first;
+                synchronized (blobRequests) {
+                    List<Consumer<byte[]>> callbacks = blobRequests.computeIfAbsent(hash, h -> new ArrayList<>());
+                    callbacks.add(callback);
+                    first = callbacks.size() == 1;
+                }
+                if (first) {
+                    writeFrame(Protocol.fetchBlob(hash));
+                }
+                return;
+            }
         }
-        return messages;
+        callback.accept(null);
     }
 
-    public void start(String username) {
-        try {
-            byte[] data = SerializationUtils.serialize(username);
-            out.writeInt(data.length);
-            out.write(data);
-            out.flush();
-            int ready = in.read();
-            if (ready == 0) {
-                ChatClient.alertError("Username is already taken");
+    // Asks the server for a page of matches in the connected room. callback runs on the inbound
+    // thread with the SEARCH_RESULT frame, or with null if the connection is lost first.
+    // Returns false without calling it if not connected.
+    public boolean search(String query, int offset, int limit, Consumer<byte[]> callback) {
+        int id = searchIds.incrementAndGet();
+        synchronized (writeLock) {
+            if (!connected) {
+                return false;
+            }
+            synchronized (searches) {
+                searches.put(id, callback);
+            }
+            writeFrame(Protocol.search(id, query, offset, limit));
+        }
+        return true;
+    }
+
+    private void writeFrame(byte[] data) {
+        synchronized (writeLock) {
+            if (!connected) {
                 return;
             }
-            inboundThread.start();
+            try {
+                Compression.writeFrame(out, data, false, traffic);
+                out.flush();
+            } catch (IOException e) {
+                disconnect(socket, e);
+            }
+        }
+    }
+
+    // Opens a connection, joins room, receives its history after seq lastSeq and logs in as
+    // username, see Handshake. Returns false if the username is taken. Called again after the
+    // connection is lost, history then resumes from the new lastSeq, or from before the gap the
+    // server reported with a RESYNC. Messages synced again are already stored and ignored.
+    public boolean connect(String room, long lastSeq, Consumer<List<Message>> chunkHandler, String username) throws IOException {
+        lastSeq = Math.min(lastSeq, resyncAfter);
+        Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
+        DataInputStream in;
+        DataOutputStream out;
+        try {
+            // Writes are batched by the caller and flushed explicitly.
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            int capabilities = Handshake.join(in, out, room, lastSeq, COMPRESSION ? Compression.DEFLATE : 0,
+                    HISTORY_WINDOW, chunkHandler, traffic);
+            compress = (capabilities & Compression.DEFLATE) != 0;
+            if (!Handshake.login(in, out, username)) {
+                socket.close();
+                return false;
+            }
         } catch (IOException e) {
-            ChatClient.alertError("Failed to start client: " + e.getMessage());
+            socket.close();
+            throw e;
+        }
+        resyncAfter = Long.MAX_VALUE;
+        synchronized (writeLock) {
+            this.socket = socket;
+            this.out = out;
+            connected = true;
         }
+        Thread inboundThread = new Thread(() -> inboundLoop(socket, in));
+        inboundThread.setDaemon(true);
+        inboundThread.start();
+        return true;
     }
 
-    private void inboundLoop() {
+    private void inboundLoop(Socket socket, DataInputStream in) {
         try {
             while (true) {
-                int length = in.readInt();
-                byte[] data = new byte[length];
-                in.readFully(data);
-                Message message = SerializationUtils.deserialize(data);
+                byte[] data = Compression.readFrame(in, traffic);
+                if (data.length > 0 && data[0] == Protocol.BLOB) {
+                    receiveBlob(data);
+                    continue;
+                }
+                if (data.length > 0 && data[0] == Protocol.SEARCH_RESULT) {
+                    Consumer<byte[]> callback;
+                    synchronized (searches) {
+                        callback = searches.remove(Protocol.searchId(data));
+                    }
+                    if (callback != null) {
+                        callback.accept(data);
+                    }
+                    continue;
+                }
+                if (data.length > 0 && data[0] == Protocol.RESYNC) {
+                    long seq = Protocol.resyncSeq(data);
+                    if (seq > 0) {
+                        resyncAfter = Math.min(resyncAfter, seq - 1);
+                    }
+                    throw new IOException("server dropped frames, resyncing");
+                }
+                Message message = MessageCodec.decode(data);
                 msgHandler.accept(message);
             }
-        } catch (IOException e) {
-            ChatClient.alertError("Failed to receive data: " + e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            // A frame that does not decode leaves the stream in an unknown state, start over.
+            disconnect(socket, e);
+        }
+    }
+
+    private void disconnect(Socket socket, Exception e) {
+        synchronized (writeLock) {
+            if (socket != this.socket || !connected) {
+                return;
+            }
+            connected = false;
+        }
+        System.err.println("Lost connection to server: " + e.getMessage());
+        // Nothing is sent again on reconnect, every pending request fails here. A thumbnail is
+        // asked for again when its row is shown again.
+        List<Consumer<byte[]>> pending = new ArrayList<>();
+        synchronized (searches) {
+            pending.addAll(searches.values());
+            searches.clear();
+        }
+        synchronized (blobRequests) {
+            for (List<Consumer<byte[]>> callbacks : blobRequests.values()) {
+                pending.addAll(callbacks);
+            }
+            blobRequests.clear();
+        }
+        for (Consumer<byte[]> callback : pending) {
+            callback.accept(null);
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void receiveBlob(byte[] frame) {
+        String hash = Protocol.hash(frame);
+        byte[] data = Protocol.blobData(frame);
+        List<Consumer<byte[]>> callbacks;
+        synchronized (blobRequests) {
+            callbacks = blobRequests.remove(hash);
+        }
+        if (callbacks != null) {
+            for (Consumer<byte[]> callback : callbacks) {
+                callback.accept(data.length == 0 ? null : data);
+            }
         }
     }
 }
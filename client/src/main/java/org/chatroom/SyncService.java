@@ -1,64 +1,375 @@
 package org.chatroom;
 
+import java.io.IOException;
 import java.sql.SQLException;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.TreeSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
+// Outgoing messages are queued and handled by a sender thread: it saves them locally a batch
+// at a time, writes the batch to the server with one flush, and reports their delivery status.
+// A message stays in flight until the server echoes it back. While the connection is down
+// the sender keeps reconnecting, and in-flight messages the server did not get are sent again
+// in order.
 public class SyncService {
+    public static final int PAGE_SIZE = 200;
+    public static final int SEARCH_PAGE_SIZE = 20;
+    private static final int SEND_BATCH = 64;
+    private static final long RETRY_MS = 2000;
+
+    public enum Delivery {
+        // Queued or waiting for the connection.
+        PENDING,
+        // Written to the server.
+        SENT,
+        // Echoed back by the server with its seq.
+        DELIVERED
+    }
+
+    // One page of search results, more is set if there is a next page.
+    public record SearchPage(List<Message> messages, boolean more) {
+    }
+
+    private record Outgoing(Message message, byte[] image) {
+    }
+
     private final Consumer<Message> msgHandler;
+    private final BiConsumer<Message, Delivery> statusHandler;
     private LocalStorage localStorage;
     private RemoteStorage remoteStorage;
+    private final LinkedBlockingQueue<Outgoing> outbox = new LinkedBlockingQueue<>();
+    // Runs requests made from the UI one at a time, so neither a local query nor a write to a
+    // stalled connection holds up the JavaFX thread.
+    private final ExecutorService requests = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "sync-requests");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Images queued with their message that are not saved yet, by hash.
+    private final Map<String, byte[]> queuedImages = new ConcurrentHashMap<>();
+    // Saved messages not echoed back yet, in send order. Guarded by itself.
+    private final List<Message> inFlight = new ArrayList<>();
+    private volatile boolean closed;
+    // The oldest message handed to the UI, older pages are loaded on demand from here. Set by
+    // start, then only used on the request thread.
+    private Message oldest;
 
-    public SyncService(Consumer<Message> msgHandler) {
+    // statusHandler is called from background threads. Messages left unsent by an earlier
+    // session are reported as the copies loaded on start, match them by id.
+    public SyncService(Consumer<Message> msgHandler, BiConsumer<Message, Delivery> statusHandler) {
         this.msgHandler = msgHandler;
+        this.statusHandler = statusHandler;
         try {
             this.localStorage = new LocalStorage();
         } catch (SQLException e) {
             ChatClient.alertError("Failed to initialize local storage: " + e.getMessage());
         }
+        this.remoteStorage = new RemoteStorage(this::receive);
+    }
+
+    // Shows the latest local page, then connects and syncs in the background.
+    public void start() {
+        List<Message> messages;
+        List<Message> unsent;
         try {
-            this.remoteStorage = new RemoteStorage((msg) -> {
+            messages = localStorage.loadLatest(ChatClient.room, PAGE_SIZE);
+            unsent = localStorage.loadUnsent(ChatClient.room, ChatClient.username);
+        } catch (SQLException e) {
+            ChatClient.alertError("Failed to load data: " + e.getMessage());
+            return;
+        }
+        if (!messages.isEmpty()) {
+            oldest = messages.get(0);
+        }
+        for (Message m : messages) {
+            msgHandler.accept(m);
+        }
+        // Messages the last session could not deliver go out first.
+        synchronized (inFlight) {
+            inFlight.addAll(unsent);
+        }
+        Thread sender = new Thread(this::sendLoop, "sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    // Saves what is still queued, it is sent on the next start.
+    public void stop() {
+        List<Outgoing> rest = new ArrayList<>();
+        outbox.drainTo(rest);
+        persist(rest);
+    }
+
+    // Calls callback on a background thread with the page of local messages before the oldest
+    // one loaded so far, oldest first. Empty once the start of history is reached. The query
+    // waits for any sync chunk being saved, so it never runs on the JavaFX thread.
+    public void loadOlder(Consumer<List<Message>> callback) {
+        requests.execute(() -> {
+            List<Message> page = List.of();
+            if (oldest != null) {
                 try {
-                    localStorage.saveMessage(msg);
-                    msgHandler.accept(msg);
+                    page = localStorage.loadBefore(oldest, PAGE_SIZE);
+                    if (!page.isEmpty()) {
+                        oldest = page.get(0);
+                    }
                 } catch (SQLException e) {
-                    ChatClient.alertError("Failed to save message: " + e.getMessage());
+                    ChatClient.alertError("Failed to load data: " + e.getMessage());
+                }
+            }
+            callback.accept(page);
+        });
+    }
+
+    // Searches the text messages of the room, best match first. The server searches the whole
+    // history while connected, otherwise the local index covers what has been synced. Returns
+    // at once, callback runs on a background thread.
+    public void search(String query, int page, Consumer<SearchPage> callback) {
+        int offset = page * SEARCH_PAGE_SIZE;
+        requests.execute(() -> {
+            boolean sent = remoteStorage.search(query, offset, SEARCH_PAGE_SIZE, frame -> {
+                if (frame == null) {
+                    // The connection was lost, this runs on the thread that noticed.
+                    requests.execute(() -> callback.accept(searchLocal(query, offset)));
+                } else {
+                    callback.accept(new SearchPage(Protocol.searchMessages(frame), Protocol.searchMore(frame)));
                 }
             });
-        } catch (Exception e) {
-            ChatClient.alertError("Failed to initialize remote storage: " + e.getMessage());
+            if (!sent) {
+                callback.accept(searchLocal(query, offset));
+            }
+        });
+    }
+
+    private SearchPage searchLocal(String query, int offset) {
+        try {
+            // One extra match tells whether there is a next page.
+            List<Message> matches = localStorage.search(ChatClient.room, query, offset, SEARCH_PAGE_SIZE + 1);
+            boolean more = matches.size() > SEARCH_PAGE_SIZE;
+            return new SearchPage(more ? matches.subList(0, SEARCH_PAGE_SIZE) : matches, more);
+        } catch (SQLException e) {
+            ChatClient.alertError("Failed to search: " + e.getMessage());
+            return new SearchPage(List.of(), false);
         }
     }
 
-    public void start() {
-        TreeSet<Message> messages;
+    public TrafficStats traffic() {
+        return remoteStorage.traffic();
+    }
+
+    // Queues message for sending. Returns immediately, progress is reported to statusHandler.
+    public void sendMessage(Message message) {
+        message.id = LocalStorage.newClientId();
+        outbox.add(new Outgoing(message, null));
+    }
+
+    // message.content is the ImageRef for data. The bytes are only uploaded if the server
+    // is not already known to have them.
+    public void sendImage(Message message, byte[] data) {
+        message.id = LocalStorage.newClientId();
+        queuedImages.put(((ImageRef) message.content).hash, data);
+        outbox.add(new Outgoing(message, data));
+    }
+
+    private void sendLoop() {
+        List<Outgoing> batch = new ArrayList<>(SEND_BATCH);
+        while (!closed) {
+            Outgoing first;
+            try {
+                first = outbox.poll(RETRY_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            List<Message> messages = List.of();
+            if (first != null) {
+                batch.add(first);
+                outbox.drainTo(batch, SEND_BATCH - 1);
+                messages = persist(batch);
+                batch.clear();
+            }
+            if (!remoteStorage.connected()) {
+                // Sends everything in flight, this batch included.
+                connect();
+            } else if (!messages.isEmpty()) {
+                send(messages);
+            }
+        }
+    }
+
+    // Saves a batch of outgoing messages in one transaction and puts them in flight.
+    private List<Message> persist(List<Outgoing> batch) {
+        List<Message> messages = new ArrayList<>(batch.size());
+        for (Outgoing outgoing : batch) {
+            messages.add(outgoing.message);
+        }
         try {
-            messages = new TreeSet<>(localStorage.loadMessages());
-            Date lastSyncTime = messages.isEmpty() ? new Date(0) : messages.last().date;
-            List<Message> remoteMessages = remoteStorage.loadMessages(lastSyncTime);
-            for (Message m : remoteMessages) {
-                if (messages.add(m)) {
-                    localStorage.saveMessage(m);
+            for (Outgoing outgoing : batch) {
+                if (outgoing.image != null) {
+                    String hash = ((ImageRef) outgoing.message.content).hash;
+                    localStorage.saveBlob(hash, outgoing.image, false);
+                    queuedImages.remove(hash);
                 }
             }
+            localStorage.saveMessages(messages);
+        } catch (SQLException e) {
+            ChatClient.alertError("Failed to save message: " + e.getMessage());
+        }
+        synchronized (inFlight) {
+            inFlight.addAll(messages);
+        }
+        return messages;
+    }
+
+    // Whatever the server got of our in-flight messages before the connection was lost comes
+    // back with the history and is acknowledged there. The rest is sent again in order.
+    private void connect() {
+        try {
+            long lastSeq = localStorage.maxSeq(ChatClient.room);
+            if (!remoteStorage.connect(ChatClient.room, lastSeq, this::receiveChunk, ChatClient.username)) {
+                closed = true;
+                ChatClient.alertError("Username is already taken");
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to connect to server: " + e.getMessage());
+            return;
         } catch (SQLException e) {
             ChatClient.alertError("Failed to load data: " + e.getMessage());
             return;
         }
-        for (Message m : messages) {
-            msgHandler.accept(m);
+        List<Message> resend;
+        synchronized (inFlight) {
+            resend = new ArrayList<>(inFlight);
+        }
+        if (!resend.isEmpty()) {
+            send(resend);
         }
-        remoteStorage.start(ChatClient.username);
     }
 
-    public void sendMessage(Message message) {
+    private void send(List<Message> messages) {
+        List<Message> frames = new ArrayList<>(messages.size());
         try {
-            localStorage.saveMessage(message);
-            remoteStorage.sendMessage(message);
+            for (Message message : messages) {
+                frames.add(message.content instanceof ImageRef ref ? upload(message, ref) : message);
+            }
         } catch (SQLException e) {
             ChatClient.alertError("Failed to send message: " + e.getMessage());
+            return;
+        }
+        try {
+            remoteStorage.send(frames);
+        } catch (IOException e) {
+            // Still in flight, sent again after reconnecting.
+            return;
+        }
+        for (Message message : messages) {
+            statusHandler.accept(message, Delivery.SENT);
+        }
+    }
+
+    // The message to post an image with: the reference if the server has the blob, else the bytes.
+    private Message upload(Message message, ImageRef ref) throws SQLException {
+        if (localStorage.isBlobShared(ref.hash)) {
+            return message;
+        }
+        byte[] data = localStorage.loadBlob(ref.hash);
+        if (data == null) {
+            return message;
+        }
+        Message upload = new Message();
+        upload.room = message.room;
+        upload.id = message.id;
+        upload.username = message.username;
+        upload.date = message.date;
+        upload.content = data;
+        return upload;
+    }
+
+    private void receive(Message msg) {
+        // The server echoes our own messages back with their seq, saveMessage only
+        // records the seq for those since they are already stored and displayed.
+        try {
+            if (localStorage.saveMessage(msg)) {
+                msgHandler.accept(msg);
+            }
+            // Once an image has been broadcast, reposts can go by reference.
+            if (msg.content instanceof ImageRef ref) {
+                localStorage.markBlobShared(ref.hash);
+            }
+        } catch (SQLException e) {
+            ChatClient.alertError("Failed to save message: " + e.getMessage());
+        }
+        acknowledge(msg);
+    }
+
+    private void receiveChunk(List<Message> chunk) {
+        try {
+            for (Message m : localStorage.saveMessages(chunk)) {
+                msgHandler.accept(m);
+            }
+        } catch (SQLException e) {
+            ChatClient.alertError("Failed to save data: " + e.getMessage());
+        }
+        for (Message m : chunk) {
+            acknowledge(m);
+        }
+    }
+
+    // Matches an echo to the in-flight message it stamps by client id, the same way
+    // LocalStorage claims its seq.
+    private void acknowledge(Message echo) {
+        if (echo.id == 0 || !echo.username.equals(ChatClient.username)) {
+            return;
+        }
+        Message sent = null;
+        synchronized (inFlight) {
+            for (Iterator<Message> it = inFlight.iterator(); it.hasNext(); ) {
+                Message message = it.next();
+                if (message.id == echo.id && message.room.equals(echo.room)) {
+                    it.remove();
+                    sent = message;
+                    break;
+                }
+            }
+        }
+        if (sent != null) {
+            statusHandler.accept(sent, Delivery.DELIVERED);
         }
     }
+
+    // Calls callback with the image bytes, fetching them from the server the first time.
+    // callback may run on another thread and gets null if the image is unavailable.
+    public void loadImage(ImageRef ref, Consumer<byte[]> callback) {
+        byte[] data = queuedImages.get(ref.hash);
+        try {
+            if (data == null) {
+                data = localStorage.loadBlob(ref.hash);
+            }
+        } catch (SQLException e) {
+            ChatClient.alertError("Failed to load image: " + e.getMessage());
+            callback.accept(null);
+            return;
+        }
+        if (data != null) {
+            callback.accept(data);
+            return;
+        }
+        remoteStorage.fetchBlob(ref.hash, bytes -> {
+            if (bytes != null) {
+                try {
+                    localStorage.saveBlob(ref.hash, bytes, true);
+                } catch (SQLException e) {
+                    ChatClient.alertError("Failed to save image: " + e.getMessage());
+                }
+            }
+            callback.accept(bytes);
+        });
+    }
 }
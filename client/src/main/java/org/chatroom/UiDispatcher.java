@@ -0,0 +1,78 @@
+package org.chatroom;
+
+import javafx.application.Platform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+// Collects messages from any thread and hands them to the view in batches, so a history
+// replay or a burst of inbound messages costs one layout pass per batch rather than one per
+// message. Row updates are applied the same way, followed by a single refresh. Results of
+// background requests are handed over with the same batch.
+//
+// A drain is scheduled with Platform.runLater only when the queues go from empty to
+// non-empty, and everything queued until it runs joins its batch. Nothing runs while idle.
+public class UiDispatcher {
+    private final ConcurrentLinkedQueue<Message> pending = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Runnable> updates = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Consumer<List<Message>> sink;
+    private final Runnable refresh;
+
+    public UiDispatcher(Consumer<List<Message>> sink, Runnable refresh) {
+        this.sink = sink;
+        this.refresh = refresh;
+    }
+
+    public void submit(Message message) {
+        pending.add(message);
+        schedule();
+    }
+
+    // Runs update on the JavaFX thread with the next batch, after its messages.
+    public void update(Runnable update) {
+        updates.add(update);
+        schedule();
+    }
+
+    // Runs task on the JavaFX thread with the next batch, after its updates, without a refresh.
+    public void run(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            Platform.runLater(this::drain);
+        }
+    }
+
+    // Cleared before draining, so anything queued from here on is either in this batch or
+    // schedules the next one.
+    private void drain() {
+        scheduled.set(false);
+        if (!pending.isEmpty()) {
+            List<Message> batch = new ArrayList<>();
+            Message message;
+            while ((message = pending.poll()) != null) {
+                batch.add(message);
+            }
+            sink.accept(batch);
+        }
+        if (!updates.isEmpty()) {
+            Runnable update;
+            while ((update = updates.poll()) != null) {
+                update.run();
+            }
+            refresh.run();
+        }
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.chatroom;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Walking a room's history back page by page, each page keyed on the oldest message of the
+// last, must return every message of the room once and in order, texts and images together,
+// even where a page boundary falls between messages posted in the same millisecond. Search
+// pages by offset and must likewise cover every match once.
+class LocalStorageTest {
+    private static final String ROOM = "room";
+    private static final int PAGE = 20;
+
+    private LocalStorage storage;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        storage = new LocalStorage("jdbc:sqlite::memory:");
+    }
+
+    @Test
+    void pagesBackThroughTheWholeRoom() throws SQLException {
+        List<Message> expected = new ArrayList<>();
+        // Three messages a millisecond so pages split ties on date, every seventh an image.
+        for (long seq = 1; seq <= 250; seq++) {
+            expected.add(message(ROOM, seq, "user", 1000 + seq / 3, seq % 7 == 0 ? image(seq) : "message " + seq));
+        }
+        // Not echoed back yet, so they share seq 0 and differ only by who posted them.
+        for (String username : List.of("alice", "bob", "carol")) {
+            expected.add(message(ROOM, 0, username, 1000 + 250 / 3, "unsent"));
+        }
+        List<Message> other = new ArrayList<>();
+        for (long seq = 1; seq <= 50; seq++) {
+            other.add(message("other", seq, "user", 1000 + seq, "other " + seq));
+        }
+        assertEquals(expected.size(), storage.saveMessages(expected).size());
+        storage.saveMessages(other);
+        expected.sort(null);
+
+        List<Message> loaded = new ArrayList<>();
+        List<Message> page = storage.loadLatest(ROOM, PAGE);
+        while (!page.isEmpty()) {
+            assertTrue(page.size() <= PAGE);
+            loaded.addAll(0, page);
+            page = storage.loadBefore(page.get(0), PAGE);
+        }
+        assertEquals(expected.size(), loaded.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertMessage(expected.get(i), loaded.get(i));
+        }
+    }
+
+    @Test
+    void pagesOfAnEmptyRoomAreEmpty() throws SQLException {
+        storage.saveMessages(List.of(message("other", 1, "user", 1000, "hello")));
+        assertTrue(storage.loadLatest(ROOM, PAGE).isEmpty());
+        assertTrue(storage.loadBefore(message(ROOM, 1, "user", 2000, "hello"), PAGE).isEmpty());
+    }
+
+    @Test
+    void searchPagesCoverEveryMatchOnce() throws SQLException {
+        List<Message> messages = new ArrayList<>();
+        for (long seq = 1; seq <= 100; seq++) {
+            String text = seq % 2 == 0 ? "the quick fox " + seq : "a lazy dog " + seq;
+            messages.add(message(ROOM, seq, "user", 1000 + seq, text));
+        }
+        messages.add(message("other", 1, "user", 1000, "the quick fox elsewhere"));
+        storage.saveMessages(messages);
+
+        Set<Long> found = new HashSet<>();
+        for (int offset = 0; ; offset += PAGE) {
+            List<Message> page = storage.search(ROOM, "quick  FOX", offset, PAGE);
+            for (Message message : page) {
+                assertEquals(ROOM, message.room);
+                assertEquals(0, message.seq % 2, "match " + message.content);
+                assertTrue(found.add(message.seq), "seq " + message.seq + " on two pages");
+            }
+            if (page.size() < PAGE) {
+                break;
+            }
+        }
+        assertEquals(50, found.size());
+    }
+
+    @Test
+    void searchMatchesQuerySyntaxLiterally() throws SQLException {
+        storage.saveMessages(List.of(
+                message(ROOM, 1, "user", 1000, "say \"hello\" NOT goodbye"),
+                message(ROOM, 2, "user", 1001, "hello there")));
+        for (String query : List.of("\"hello", "NOT", "hello*", "(hello", "hello OR", "-", "a:b", "^")) {
+            storage.search(ROOM, query, 0, PAGE);
+        }
+        List<Message> found = storage.search(ROOM, "NOT goodbye", 0, PAGE);
+        assertEquals(1, found.size());
+        assertEquals(1, found.get(0).seq);
+        assertTrue(storage.search(ROOM, "   ", 0, PAGE).isEmpty());
+    }
+
+    private static Message message(String room, long seq, String username, long date, Object content) {
+        Message message = new Message();
+        message.room = room;
+        message.seq = seq;
+        message.id = LocalStorage.newClientId();
+        message.username = username;
+        message.date = new Date(date);
+        message.content = content;
+        return message;
+    }
+
+    private static ImageRef image(long seq) {
+        return new ImageRef(String.format("%064x", seq), (int) seq, 64, 48);
+    }
+
+    private static void assertMessage(Message expected, Message actual) {
+        assertEquals(expected.room, actual.room);
+        assertEquals(expected.seq, actual.seq);
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.username, actual.username);
+        assertEquals(expected.date, actual.date);
+        if (expected.content instanceof ImageRef image) {
+            assertEquals(image.hash, ((ImageRef) actual.content).hash);
+        } else {
+            assertEquals(expected.content, actual.content);
+        }
+    }
+}
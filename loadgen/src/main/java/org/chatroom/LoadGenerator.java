@@ -0,0 +1,183 @@
+package org.chatroom;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Headless load generator. Drives a ChatServer end to end with USERS virtual users over real
+// sockets and reports throughput, delivery latency, history sync times and lost or repeated
+// messages. Without SERVER_HOST it runs the server in-process on an in-memory H2 database,
+// or with STORE=log on the embedded log store.
+//
+// Users connect spread over the warmup, statistics cover the DURATION_S after it.
+public class LoadGenerator {
+    // Server to load, empty to start one in this process on SERVER_PORT.
+    public static String HOST = System.getenv().getOrDefault("SERVER_HOST", "");
+    public static int PORT = Integer.parseInt(System.getenv().getOrDefault("SERVER_PORT", "9090"));
+    // Database of the in-process server.
+    public static String DB_URL = System.getenv().getOrDefault("DB_URL", "jdbc:h2:mem:loadgen;MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+    public static int USERS = Integer.parseInt(System.getenv().getOrDefault("LOAD_USERS", "1000"));
+    public static int ROOMS = Integer.parseInt(System.getenv().getOrDefault("LOAD_ROOMS", "10"));
+    // Messages per second per user.
+    public static double RATE = Double.parseDouble(System.getenv().getOrDefault("LOAD_RATE", "0.5"));
+    public static int WARMUP_S = Integer.parseInt(System.getenv().getOrDefault("LOAD_WARMUP_S", "10"));
+    public static int DURATION_S = Integer.parseInt(System.getenv().getOrDefault("LOAD_DURATION_S", "60"));
+    // Share of posts that are images, and their size. Images are reposted by reference once
+    // the server has them, like the client does.
+    public static int IMAGE_PERCENT = Integer.parseInt(System.getenv().getOrDefault("LOAD_IMAGE_PERCENT", "2"));
+    public static int IMAGE_BYTES = Integer.parseInt(System.getenv().getOrDefault("LOAD_IMAGE_BYTES", "32768"));
+    // Mean seconds a user stays connected before reconnecting, 0 to stay connected.
+    public static double SESSION_S = Double.parseDouble(System.getenv().getOrDefault("LOAD_SESSION_S", "0"));
+    // Share of users that pause SLOW_DELAY_MS after every frame they read.
+    public static int SLOW_PERCENT = Integer.parseInt(System.getenv().getOrDefault("LOAD_SLOW_PERCENT", "0"));
+    public static long SLOW_DELAY_MS = Long.parseLong(System.getenv().getOrDefault("LOAD_SLOW_DELAY_MS", "20"));
+    public static boolean COMPRESSION = !"off".equals(System.getenv("COMPRESSION"));
+    private static final int IMAGES = 16;
+    private static final int REPORT_S = 5;
+
+    private volatile LoadStats stats = new LoadStats();
+    private final TrafficStats traffic = new TrafficStats();
+    private final AtomicInteger connected = new AtomicInteger();
+    private final byte[][] images = new byte[IMAGES][];
+    private final String[] imageHashes = new String[IMAGES];
+    // Images the server has broadcast, by hash.
+    private final ConcurrentHashMap<String, ImageRef> shared = new ConcurrentHashMap<>();
+    private long deadline;
+
+    public static void main(String[] args) throws Exception {
+        if (HOST.isEmpty()) {
+            startServer();
+            HOST = "localhost";
+        }
+        new LoadGenerator().run();
+        System.exit(0);
+    }
+
+    private static void startServer() throws SQLException, InterruptedException {
+        if (!"log".equals(ChatServer.STORE)) {
+            createSchema();
+        }
+        ChatServer.PORT = PORT;
+        ChatServer.DB_URL = DB_URL;
+        Thread.ofPlatform().name("server").daemon().start(ChatServer::start);
+        // Set once the store is open, the listening socket is bound before that.
+        while (ChatServer.blobStore() == null) {
+            Thread.sleep(50);
+        }
+    }
+
+    private static void createSchema() throws SQLException {
+        try (Connection connection = DriverManager.getConnection(DB_URL); Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS text_msg (id SERIAL PRIMARY KEY, room TEXT NOT NULL, seq BIGINT NOT NULL, client_id BIGINT NOT NULL DEFAULT 0, username TEXT NOT NULL, date BIGINT NOT NULL, text TEXT NOT NULL)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS image_msg (id SERIAL PRIMARY KEY, room TEXT NOT NULL, seq BIGINT NOT NULL, client_id BIGINT NOT NULL DEFAULT 0, username TEXT NOT NULL, date BIGINT NOT NULL, hash TEXT NOT NULL, size INT NOT NULL, width INT NOT NULL, height INT NOT NULL)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS blob (hash TEXT PRIMARY KEY, data BYTEA NOT NULL)");
+            stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS text_msg_room_seq ON text_msg (room, seq)");
+            stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS image_msg_room_seq ON image_msg (room, seq)");
+        }
+    }
+
+    private void run() throws InterruptedException {
+        Random random = new Random(42);
+        for (int i = 0; i < IMAGES; i++) {
+            images[i] = new byte[IMAGE_BYTES];
+            random.nextBytes(images[i]);
+            imageHashes[i] = ImageRef.hashOf(images[i]);
+        }
+        System.out.printf(Locale.ROOT, "%d users in %d rooms posting %.2f/s each against %s:%d, %ds warmup, %ds measured%n",
+                USERS, ROOMS, RATE, HOST, PORT, WARMUP_S, DURATION_S);
+        long start = System.nanoTime();
+        long warmupEnd = start + TimeUnit.SECONDS.toNanos(WARMUP_S);
+        deadline = warmupEnd + TimeUnit.SECONDS.toNanos(DURATION_S);
+        List<Thread> threads = new ArrayList<>(USERS);
+        for (int i = 0; i < USERS; i++) {
+            boolean slow = i % 100 < SLOW_PERCENT;
+            long delay = (long) i * WARMUP_S * 1000 / USERS;
+            VirtualUser user = new VirtualUser(this, "user" + i, "room-" + i % ROOMS, slow, delay);
+            threads.add(Thread.ofVirtual().name("user-" + i).start(user));
+        }
+
+        boolean measuring = false;
+        long lastSent = 0;
+        long lastDelivered = 0;
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(REPORT_S * 1000);
+            if (!measuring && System.nanoTime() >= warmupEnd) {
+                measuring = true;
+                stats = new LoadStats();
+                lastSent = 0;
+                lastDelivered = 0;
+                System.out.println("Warmup done, measuring");
+                continue;
+            }
+            LoadStats current = stats;
+            long sent = current.sent.sum();
+            long delivered = current.delivered.sum();
+            System.out.printf(Locale.ROOT, "%4ds  connected %d  sent %.0f/s  delivered %.0f/s  p99 %.1f ms%n",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), connected.get(),
+                    (sent - lastSent) / (double) REPORT_S, (delivered - lastDelivered) / (double) REPORT_S,
+                    current.latency.snapshot().getP99() / 1000.0);
+            lastSent = sent;
+            lastDelivered = delivered;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report(stats, Math.min(System.nanoTime(), deadline));
+    }
+
+    private void report(LoadStats stats, long end) {
+        double seconds = (end - stats.startNanos) / 1e9;
+        Histogram.Snapshot latency = stats.latency.snapshot();
+        Histogram.Snapshot history = stats.historyLatency.snapshot();
+        Histogram.Snapshot historySize = stats.historyMessages.snapshot();
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Measured     %.1f s%n", seconds);
+        System.out.printf(Locale.ROOT, "Sent         %d (%.1f/s)%n", stats.sent.sum(), stats.sent.sum() / seconds);
+        System.out.printf(Locale.ROOT, "Delivered    %d (%.1f/s)%n", stats.delivered.sum(), stats.delivered.sum() / seconds);
+        System.out.printf(Locale.ROOT, "Latency      p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms%n",
+                latency.getP50() / 1000.0, latency.getP90() / 1000.0, latency.getP99() / 1000.0, latency.getMax() / 1000.0);
+        System.out.printf(Locale.ROOT, "History sync %d syncs, p50 %.1f ms, p99 %.1f ms, p99 %d messages%n",
+                history.getCount(), history.getP50() / 1000.0, history.getP99() / 1000.0, historySize.getP99());
+        System.out.printf(Locale.ROOT, "Dropped      %d, duplicated %d, resyncs %d%n",
+                stats.dropped.sum(), stats.duplicated.sum(), stats.resyncs.sum());
+        System.out.printf(Locale.ROOT, "Reconnects   %d, refused logins %d, errors %d%n",
+                stats.reconnects.sum(), stats.rejected.sum(), stats.errors.sum());
+        System.out.println("Traffic      " + traffic);
+    }
+
+    long deadline() {
+        return deadline;
+    }
+
+    LoadStats stats() {
+        return stats;
+    }
+
+    TrafficStats traffic() {
+        return traffic;
+    }
+
+    AtomicInteger connected() {
+        return connected;
+    }
+
+    // Content for an image post: the reference if the server has the image, else the bytes.
+    Object image(ThreadLocalRandom random) {
+        int i = random.nextInt(IMAGES);
+        ImageRef ref = shared.get(imageHashes[i]);
+        return ref != null ? ref : images[i];
+    }
+
+    void shared(ImageRef ref) {
+        shared.putIfAbsent(ref.hash, ref);
+    }
+}
@@ -0,0 +1,25 @@
+package org.chatroom;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters of one measurement period, shared by all virtual users. Latencies are in microseconds.
+final class LoadStats {
+    final LongAdder sent = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    // Seqs a user never received, because the server dropped them for a slow reader or they
+    // went missing otherwise.
+    final LongAdder dropped = new LongAdder();
+    // Messages a user received again, with a seq it had already seen.
+    final LongAdder duplicated = new LongAdder();
+    final LongAdder reconnects = new LongAdder();
+    // Times the server dropped frames for a slow reader and told it to sync them again.
+    final LongAdder resyncs = new LongAdder();
+    // Logins refused because the previous connection of the user was still registered.
+    final LongAdder rejected = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    // From sending a text message to each member of the room receiving it.
+    final Histogram latency = new Histogram();
+    final Histogram historyLatency = new Histogram();
+    final Histogram historyMessages = new Histogram();
+    final long startNanos = System.nanoTime();
+}
@@ -0,0 +1,187 @@
+package org.chatroom;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// One simulated client. It connects with the real handshake, posts at random intervals with
+// a mean of RATE per second, and reads everything its room broadcasts, checking seqs for gaps
+// and repeats. With SESSION_S set it disconnects after a random time and reconnects, syncing
+// what it missed. It also reconnects when the server reports dropping frames for it.
+final class VirtualUser implements Runnable {
+    private static final int HISTORY_WINDOW = 4;
+    private static final String PADDING = "x".repeat(256);
+
+    private final LoadGenerator generator;
+    private final String username;
+    private final String room;
+    private final boolean slow;
+    private final long startDelayMs;
+    // Highest seq of the room seen so far, -1 before the first message. Written by the reader
+    // thread, read by the next handshake after the reader is joined.
+    private long lastSeq = -1;
+
+    VirtualUser(LoadGenerator generator, String username, String room, boolean slow, long startDelayMs) {
+        this.generator = generator;
+        this.username = username;
+        this.room = room;
+        this.slow = slow;
+        this.startDelayMs = startDelayMs;
+    }
+
+    @Override
+    public void run() {
+        try {
+            Thread.sleep(startDelayMs);
+            while (System.nanoTime() < generator.deadline()) {
+                try {
+                    if (!session()) {
+                        Thread.sleep(100);
+                    }
+                } catch (IOException e) {
+                    generator.stats().errors.increment();
+                    Thread.sleep(1000);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // One connection, until the session time is up. Returns false if the login was refused.
+    private boolean session() throws IOException, InterruptedException {
+        Thread reader = null;
+        try {
+            try (Socket socket = new Socket(LoadGenerator.HOST, LoadGenerator.PORT)) {
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                long start = System.nanoTime();
+                long[] synced = new long[1];
+                // A new user starts from now, a returning one syncs what it missed. The server adds
+                // one to the seq, hence not Long.MAX_VALUE.
+                int capabilities = Handshake.join(in, out, room, lastSeq < 0 ? Long.MAX_VALUE - 1 : lastSeq,
+                        LoadGenerator.COMPRESSION ? Compression.DEFLATE : 0, HISTORY_WINDOW, chunk -> {
+                            for (Message message : chunk) {
+                                receive(message, false);
+                            }
+                            synced[0] += chunk.size();
+                        }, generator.traffic());
+                if (!Handshake.login(in, out, username)) {
+                    generator.stats().rejected.increment();
+                    return false;
+                }
+                LoadStats stats = generator.stats();
+                stats.historyLatency.recordSince(start);
+                stats.historyMessages.record(synced[0]);
+                generator.connected().incrementAndGet();
+                reader = Thread.ofVirtual().name("reader-" + username).start(() -> read(in));
+                try {
+                    send(out, (capabilities & Compression.DEFLATE) != 0, sessionEnd(), reader);
+                } finally {
+                    generator.connected().decrementAndGet();
+                }
+            }
+        } finally {
+            // Closing the socket ends the reader, joined so the next handshake reads its lastSeq.
+            if (reader != null) {
+                reader.join();
+            }
+        }
+        if (System.nanoTime() < generator.deadline()) {
+            generator.stats().reconnects.increment();
+        }
+        return true;
+    }
+
+    private long sessionEnd() {
+        if (LoadGenerator.SESSION_S <= 0) {
+            return generator.deadline();
+        }
+        double seconds = -Math.log(1 - ThreadLocalRandom.current().nextDouble()) * LoadGenerator.SESSION_S;
+        return Math.min(generator.deadline(), System.nanoTime() + (long) (seconds * 1e9));
+    }
+
+    private void send(DataOutputStream out, boolean compress, long end, Thread reader) throws IOException, InterruptedException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (reader.isAlive()) {
+            // Poisson arrivals: exponential gaps between posts.
+            long next = System.nanoTime() + (long) (-Math.log(1 - random.nextDouble()) / LoadGenerator.RATE * 1e9);
+            if (next >= end) {
+                TimeUnit.NANOSECONDS.sleep(Math.max(0, end - System.nanoTime()));
+                return;
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, next - System.nanoTime()));
+            Message message = new Message();
+            message.room = room;
+            message.username = username;
+            message.date = new Date();
+            if (random.nextInt(100) < LoadGenerator.IMAGE_PERCENT) {
+                message.content = generator.image(random);
+            } else {
+                // Receivers take the latency from the send time at the start of the text.
+                message.content = System.nanoTime() + " " + PADDING.substring(0, 20 + random.nextInt(100));
+            }
+            Compression.writeFrame(out, MessageCodec.encode(message), compress && !(message.content instanceof byte[]), generator.traffic());
+            out.flush();
+            generator.stats().sent.increment();
+        }
+    }
+
+    private void read(DataInputStream in) {
+        try {
+            while (true) {
+                byte[] data = Compression.readFrame(in, generator.traffic());
+                if (data.length > 0 && data[0] == Protocol.BLOB) {
+                    continue;
+                }
+                if (data.length > 0 && data[0] == Protocol.RESYNC) {
+                    // Ends the session, the reconnect syncs the dropped seqs as history.
+                    long seq = Protocol.resyncSeq(data);
+                    if (seq > 0) {
+                        lastSeq = Math.min(lastSeq, seq - 1);
+                    }
+                    generator.stats().resyncs.increment();
+                    return;
+                }
+                receive(MessageCodec.decode(data), true);
+                if (slow) {
+                    Thread.sleep(LoadGenerator.SLOW_DELAY_MS);
+                }
+            }
+        } catch (IOException e) {
+            // Closed at the end of the session, or by the server.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void receive(Message message, boolean live) {
+        LoadStats stats = generator.stats();
+        if (lastSeq >= 0 && message.seq <= lastSeq) {
+            stats.duplicated.increment();
+            return;
+        }
+        if (lastSeq >= 0 && message.seq > lastSeq + 1) {
+            stats.dropped.add(message.seq - lastSeq - 1);
+        }
+        lastSeq = message.seq;
+        stats.delivered.increment();
+        if (message.content instanceof ImageRef ref) {
+            generator.shared(ref);
+        } else if (live && message.content instanceof String text) {
+            int space = text.indexOf(' ');
+            try {
+                stats.latency.recordSince(Long.parseLong(text, 0, space, 10));
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                // Not posted by a virtual user.
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.chatroom;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Image bytes stored once by SHA-256. Messages only carry an ImageRef, clients fetch the
+// bytes on demand. Recently stored or fetched blobs stay in memory, since a new image is
+// usually fetched by everyone in the room at about the same time.
+public class BlobStore {
+    public static long CACHE_BYTES = Long.parseLong(System.getenv().getOrDefault("BLOB_CACHE_BYTES", String.valueOf(64 * 1024 * 1024)));
+
+    private final MessageStore store;
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheBytes;
+
+    public BlobStore(MessageStore store) {
+        this.store = store;
+    }
+
+    // Stores data unless a blob with the same hash exists and returns its reference.
+    public ImageRef put(byte[] data) throws IOException {
+        String hash = ImageRef.hashOf(data);
+        if (!exists(hash)) {
+            store.putBlob(hash, data);
+            cache(hash, data);
+        }
+        int[] size = dimensions(data);
+        return new ImageRef(hash, data.length, size[0], size[1]);
+    }
+
+    public boolean exists(String hash) throws IOException {
+        synchronized (cache) {
+            if (cache.containsKey(hash)) {
+                return true;
+            }
+        }
+        return store.hasBlob(hash);
+    }
+
+    // Returns null if there is no blob with this hash.
+    public byte[] get(String hash) throws IOException {
+        synchronized (cache) {
+            byte[] data = cache.get(hash);
+            if (data != null) {
+                return data;
+            }
+        }
+        byte[] data = store.getBlob(hash);
+        if (data != null) {
+            cache(hash, data);
+        }
+        return data;
+    }
+
+    private void cache(String hash, byte[] data) {
+        synchronized (cache) {
+            if (cache.put(hash, data) == null) {
+                cacheBytes += data.length;
+            }
+            Iterator<Map.Entry<String, byte[]>> it = cache.entrySet().iterator();
+            while (cacheBytes > CACHE_BYTES && it.hasNext()) {
+                cacheBytes -= it.next().getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    // Reads width and height from the image header without decoding pixels, 0x0 if the
+    // format is not recognised.
+    private static int[] dimensions(byte[] data) {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(in);
+                    return new int[]{reader.getWidth(0), reader.getHeight(0)};
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to read image size: " + e.getMessage());
+        }
+        return new int[]{0, 0};
+    }
+}
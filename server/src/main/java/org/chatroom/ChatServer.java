@@ -1,22 +1,36 @@
 package org.chatroom;
 
-import org.apache.commons.lang3.SerializationUtils;
-
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.sql.*;
-import java.util.Date;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ChatServer {
-    private static final Map<String, DataOutputStream> clients = new HashMap<>();
-    public static int PORT = Integer.parseInt(System.getenv("SERVER_PORT"));
+    private static final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private static final ReentrantLock clientsLock = new ReentrantLock();
+    private static final int INGEST_CAPACITY = 4096;
+    private static final int INGEST_BATCH = 256;
+    static final int HISTORY_CHUNK_SIZE = 256;
+    static final long HISTORY_CHUNK_BYTES = 1024 * 1024;
+    public static int PORT = Integer.parseInt(System.getenv().getOrDefault("SERVER_PORT", "9090"));
+    // "jdbc" for the database at DB_URL, "log" for the embedded log in LogMessageStore.DIR.
+    public static String STORE = System.getenv().getOrDefault("STORE", "jdbc");
     public static String DB_URL = System.getenv("DB_URL");
-    private static Connection connection;
-    private static DataInputStream messageIn;
+    // When set to "commit", a message is fanned out, and echoed back to its sender as an ack,
+    // only after it has been committed. Always the case in a cluster.
+    public static boolean ACK_AFTER_COMMIT = "commit".equals(System.getenv("PERSIST_ACK"));
+    private static MessageStore store;
+    // Null with the log store.
+    private static ConnectionPool pool;
+    private static WriteBehindWriter writer;
+    private static BlobStore blobStore;
+    // Null unless CLUSTER_NODES is set.
+    private static ClusterBus cluster;
+    private static IngestRing<Frame> messageIn;
     private static ExecutorService executor;
 
     public static void main(String[] args) {
@@ -24,54 +38,81 @@ public class ChatServer {
     }
 
     public static void start() {
-        ServerSocket socket;
-        DataOutputStream messageOut;
+        ServerSocketChannel socket;
 
-        System.out.println("Starting server..." + PORT + " " + DB_URL);
+        System.out.println("Starting server..." + PORT + " " + ("log".equals(STORE) ? LogMessageStore.DIR : DB_URL));
 
         try {
-            executor = Executors.newFixedThreadPool(4);
-            socket = new ServerSocket(PORT);
-            PipedInputStream pipedIn = new PipedInputStream();
-            PipedOutputStream pipedOut = new PipedOutputStream(pipedIn);
-            messageIn = new DataInputStream(pipedIn);
-            messageOut = new DataOutputStream(pipedOut);
+            // One virtual thread per connection: blocking socket reads park the virtual thread
+            // instead of holding a platform thread for the whole session.
+            executor = Executors.newVirtualThreadPerTaskExecutor();
+            socket = ServerSocketChannel.open().bind(new InetSocketAddress(PORT));
+            messageIn = new IngestRing<>(INGEST_CAPACITY);
         } catch (Exception e) {
             System.err.println("Failed to start server: " + e.getMessage());
             System.exit(1);
             return;
         }
+        if (!ClusterBus.NODES.isEmpty() && "log".equals(STORE)) {
+            System.err.println("A cluster needs a shared database, STORE=log cannot be used with CLUSTER_NODES");
+            System.exit(1);
+            return;
+        }
         try {
-            connection = DriverManager.getConnection(DB_URL);
-        } catch (SQLException e) {
-            System.err.println("Failed to connect to database: " + e.getMessage());
+            if ("log".equals(STORE)) {
+                store = new LogMessageStore(Path.of(LogMessageStore.DIR));
+            } else {
+                pool = new ConnectionPool(DB_URL);
+                store = new JdbcMessageStore(pool);
+            }
+            // Also checks the store is reachable before accepting clients.
+            room(Message.DEFAULT_ROOM);
+            blobStore = new BlobStore(store);
+            writer = new WriteBehindWriter(store, ChatServer::fenced);
+        } catch (IOException e) {
+            System.err.println("Failed to open message store: " + e.getMessage());
             System.exit(1);
             return;
         }
+        Metrics.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                writer.stop();
+                store.close();
+            } catch (InterruptedException | IOException e) {
+                System.err.println("Failed to flush pending messages: " + e.getMessage());
+            }
+        }));
+
+        if (!ClusterBus.NODES.isEmpty()) {
+            cluster = new ClusterBus(ClusterBus.NODES, ClusterBus.NODE_ID, new ClusterBus.Handler() {
+                @Override
+                public void forwarded(Frame frame) throws InterruptedException {
+                    messageIn.put(frame);
+                }
+
+                @Override
+                public void published(Frame frame) {
+                    deliver(frame);
+                }
+            });
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                System.err.println("Failed to start cluster bus: " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+            System.out.println("Node " + cluster.self() + " of " + cluster.nodes());
+        }
 
         System.out.println("Server started on port " + PORT);
 
-        executor.execute(() -> {
+        Thread.ofPlatform().name("broadcaster").start(() -> {
             try {
                 while (true) {
-                    int length = messageIn.readInt();
-                    byte[] data = new byte[length];
-                    messageIn.readFully(data);
-                    Message message = SerializationUtils.deserialize(data);
-                    String username = message.username;
-                    if (message.content instanceof String) {
-                        saveText(message.username, message.date, (String) message.content);
-                    } else {
-                        saveImage(message.username, message.date, (byte[]) message.content);
-                    }
-                    for (Map.Entry<String, DataOutputStream> entry : clients.entrySet()) {
-                        if (entry.getKey().equals(username)) {
-                            continue;
-                        }
-                        byte[] messageData = SerializationUtils.serialize(message);
-                        entry.getValue().writeInt(messageData.length);
-                        entry.getValue().write(messageData);
-                    }
+                    messageIn.drainTo(ChatServer::broadcast, INGEST_BATCH);
                 }
             } catch (Exception e) {
                 System.err.println("Failed to handle messageIn: " + e.getMessage());
@@ -80,87 +121,267 @@ public class ChatServer {
 
         try {
             while (true) {
-                Socket client = socket.accept();
-                executor.execute(new ClientHandle(client, messageOut));
+                SocketChannel client = socket.accept();
+                executor.execute(new ClientHandle(client, messageIn));
             }
         } catch (IOException e) {
             System.err.println("Failed to accept client: " + e.getMessage());
         }
     }
 
-    public static synchronized boolean registerClient(String username, DataOutputStream out) {
-        if (clients.containsKey(username)) {
-            return false;
-        }
+    // Stamps the next sequence number of the message's room and encodes the message once. The
+    // stamped frame also goes back to the sender, which is how the client learns the seq of its
+    // own message. In a cluster only the owner of the room does this, other nodes forward.
+    //
+    // Nodes can briefly disagree on the owner, so an owner first claims the room in the store
+    // and continues from the seq saved there. A cluster fans out only committed messages, so
+    // that seq covers everything any client has seen, and appends of an older claim are
+    // refused from then on.
+    private static void broadcast(Frame inbound) {
         try {
-            out.write(1);
-            out.flush();
-        } catch (IOException e) {
-            System.err.println("Failed to register client: " + e.getMessage());
-            return false;
-        }
-        clients.put(username, out);
-        return true;
-    }
-
-    public static synchronized void unregisterClient(String username) {
-        clients.remove(username);
-    }
-
-    public static List<Object> loadMessages(Date date) {
-        String loadTextSql = "SELECT username, date, text FROM text_msg WHERE date > ?";
-        String loadImageSql = "SELECT username, date, image FROM image_msg WHERE date > ?";
-        try (PreparedStatement textStmt = connection.prepareStatement(loadTextSql);
-             PreparedStatement imageStmt = connection.prepareStatement(loadImageSql)) {
-            textStmt.setLong(1, date.getTime());
-            imageStmt.setLong(1, date.getTime());
-            List<Object> messages = new ArrayList<>();
-            try (ResultSet rs = textStmt.executeQuery()) {
-                while (rs.next()) {
-                    Message message = new Message();
-                    message.username = rs.getString(1);
-                    message.date = new Date(rs.getLong(2));
-                    message.content = rs.getString(3);
-                    messages.add(message);
+            Message message = inbound.message();
+            Room room;
+            long epoch = 0;
+            if (cluster != null) {
+                int owner = cluster.owner(message.room);
+                // Each failed forward takes the owner out of the live nodes, the room then
+                // ends up with another node or with this one.
+                while (owner != cluster.self()) {
+                    Room previous = rooms.get(message.room);
+                    if (previous != null) {
+                        previous.release(previous.epoch());
+                    }
+                    if (cluster.forward(owner, inbound)) {
+                        return;
+                    }
+                    owner = cluster.owner(message.room);
+                }
+                room = room(message.room);
+                epoch = room.epoch();
+                if (epoch == 0) {
+                    epoch = store.claim(room.name());
+                    room.claimed(epoch, store.maxSeq(room.name()));
                 }
+            } else {
+                room = room(message.room);
+            }
+            if (message.id != 0 && !room.firstSent(message.username, message.id)) {
+                // Sent again by a client that reconnected before it saw the echo. The first
+                // copy reaches it through history or fan-out.
+                return;
+            }
+            message.seq = room.nextSeq();
+            Metrics.ingested.increment();
+            Frame frame = Frame.of(message);
+            if (ACK_AFTER_COMMIT || cluster != null) {
+                writer.submit(message, epoch, () -> {
+                    room.recentHistory().committed(message.seq);
+                    fanOut(room, message.seq, frame);
+                });
+            } else {
+                writer.submit(message, 0, () -> room.recentHistory().committed(message.seq));
+                fanOut(room, message.seq, frame);
             }
-            try (ResultSet rs = imageStmt.executeQuery()) {
-                while (rs.next()) {
-                    Message message = new Message();
-                    message.username = rs.getString(1);
-                    message.date = new Date(rs.getLong(2));
-                    message.content = rs.getBytes(3);
-                    messages.add(message);
+        } catch (RuntimeException | IOException e) {
+            System.err.println("Failed to broadcast message: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Another node claimed the room since these messages were stamped. Nobody has seen them,
+    // so they go through the broadcaster again and are stamped by whoever owns the room now.
+    // Off the writer thread, which must not wait for the ingest ring.
+    private static void fenced(String name, long epoch, List<Message> messages) {
+        Room room = rooms.get(name);
+        if (room != null) {
+            room.release(epoch);
+            for (Message message : messages) {
+                room.forget(message.username, message.id);
+            }
+        }
+        Thread.ofVirtual().name("reroute").start(() -> {
+            try {
+                for (Message message : messages) {
+                    message.seq = 0;
+                    messageIn.put(Frame.of(message));
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-            return messages;
-        } catch (SQLException e) {
-            System.err.println("Failed to load messages: " + e.getMessage());
-            return List.of();
+        });
+    }
+
+    private static void fanOut(Room room, long seq, Frame frame) {
+        deliverLocal(room, seq, frame);
+        if (cluster != null) {
+            cluster.publish(frame);
+        }
+    }
+
+    // A message stamped by the owning node of its room.
+    private static void deliver(Frame frame) {
+        try {
+            Message message = frame.message();
+            Room room = room(message.room);
+            // Keeps the seq current in case this node takes the room over.
+            room.observe(message.seq);
+            // The owner only publishes what it saved.
+            room.recentHistory().committed(message.seq);
+            deliverLocal(room, message.seq, frame);
+        } catch (RuntimeException | IOException e) {
+            System.err.println("Failed to deliver message: " + e.getMessage());
         }
     }
 
-    private static void saveText(String user, java.util.Date date, String text) {
-        String sql = "INSERT INTO text_msg (username, date, text) VALUES (?, ?, ?)";
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, user);
-            stmt.setLong(2, date.getTime());
-            stmt.setString(3, text);
-            stmt.execute();
-        } catch (SQLException e) {
-            System.err.println("Failed to save text: " + e.getMessage());
+    // Locked per room: while ownership moves, frames of one room can come from the broadcaster
+    // and from a bus reader. Package-private for the benchmarks.
+    static void deliverLocal(Room room, long seq, Frame frame) {
+        long start = System.nanoTime();
+        synchronized (room) {
+            room.recentHistory().add(seq, frame);
+            room.buffer(seq, frame);
+            for (Session session : room.sessions()) {
+                session.offer(seq, frame);
+            }
         }
+        Metrics.fanOutLatency.recordSince(start);
     }
 
-    private static void saveImage(String user, java.util.Date date, byte[] image) {
-        String sql = "INSERT INTO image_msg (username, date, image) VALUES (?, ?, ?)";
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, user);
-            stmt.setLong(2, date.getTime());
-            stmt.setBytes(3, image);
-            stmt.execute();
-        } catch (SQLException e) {
-            System.err.println("Failed to save image: " + e.getMessage());
+    // Rooms are created on first use and live as long as the server, their seq must not restart.
+    public static Room room(String name) throws IOException {
+        Room room = rooms.get(name);
+        if (room != null) {
+            return room;
+        }
+        // Nothing can be stamped in a room before it is in the map, so a racing thread reads
+        // the same last seq and one of the two instances is simply dropped.
+        Room created = new Room(name, store.maxSeq(name));
+        room = rooms.putIfAbsent(name, created);
+        return room == null ? created : room;
+    }
+
+    public static Collection<Room> rooms() {
+        return rooms.values();
+    }
+
+    // Usernames are unique within a room. Uses a ReentrantLock rather than synchronized so a
+    // virtual thread blocked on the ready-byte write does not pin its carrier thread.
+    //
+    // backlog holds what was fanned out in the room while the client streamed history, up to
+    // historySeq. The frames after it are queued ahead of anything fanned out later, under the
+    // room's monitor, so the client sees every seq once and in order.
+    public static boolean registerClient(Session session, Room.Backlog backlog, long historySeq) throws IOException {
+        Room room = session.room();
+        Map<String, Session> clients = room.sessionsByName();
+        clientsLock.lock();
+        try {
+            if (clients.containsKey(session.username())) {
+                return false;
+            }
+            try {
+                session.out().write(1);
+                session.out().flush();
+            } catch (IOException e) {
+                System.err.println("Failed to register client: " + e.getMessage());
+                return false;
+            }
+            synchronized (room) {
+                room.closeBacklog(backlog);
+                if (backlog.overflowed()) {
+                    // It reconnects and syncs the rest as history.
+                    session.close();
+                    throw new IOException("room moved on too far while " + session.username() + " synced history");
+                }
+                backlog.offerAfter(historySeq, session);
+                clients.put(session.username(), session);
+            }
+            session.start();
+            return true;
+        } finally {
+            clientsLock.unlock();
+        }
+    }
+
+    public static void unregisterClient(Session session) {
+        session.close();
+        clientsLock.lock();
+        try {
+            session.room().sessionsByName().remove(session.username(), session);
+        } finally {
+            clientsLock.unlock();
+        }
+    }
+
+    public static List<Session> sessions() {
+        List<Session> sessions = new ArrayList<>();
+        for (Room room : rooms.values()) {
+            sessions.addAll(room.sessions());
+        }
+        return sessions;
+    }
+
+    public static int ingestQueueDepth() {
+        return messageIn == null ? 0 : messageIn.size();
+    }
+
+    public static int persistQueueDepth() {
+        return writer == null ? 0 : writer.pending();
+    }
+
+    public static MessageStore store() {
+        return store;
+    }
+
+    public static ConnectionPool pool() {
+        return pool;
+    }
+
+    // Lets the benchmarks read history without starting the server.
+    static void useStore(MessageStore store) {
+        ChatServer.store = store;
+    }
+
+    public static BlobStore blobStore() {
+        return blobStore;
+    }
+
+    public interface HistorySink {
+        void accept(List<Message> chunk) throws IOException;
+
+        // A chunk of already encoded messages, from the recent history cache.
+        void acceptEncoded(List<Frame> chunk) throws IOException;
+    }
+
+    // Streams every message of room after seq afterSeq to sink. Whatever the recent history
+    // window still holds is sent from memory, only the older part of the range is queried.
+    public static void streamHistory(Room room, long afterSeq, HistorySink sink) throws IOException {
+        RecentHistory recentHistory = room.recentHistory();
+        List<Frame> cached = recentHistory.after(afterSeq);
+        recentHistory.record(cached != null);
+        if (cached == null) {
+            long floor = recentHistory.floor();
+            store.stream(room.name(), afterSeq, floor, sink);
+            cached = recentHistory.after(floor - 1);
+            if (cached == null) {
+                // The window moved on while we were querying, take the rest from the store too.
+                store.stream(room.name(), floor - 1, Long.MAX_VALUE, sink);
+                return;
+            }
+        }
+        List<Frame> chunk = new ArrayList<>(HISTORY_CHUNK_SIZE);
+        long chunkBytes = 0;
+        for (Frame frame : cached) {
+            chunk.add(frame);
+            chunkBytes += frame.size();
+            if (chunk.size() >= HISTORY_CHUNK_SIZE || chunkBytes >= HISTORY_CHUNK_BYTES) {
+                sink.acceptEncoded(chunk);
+                chunk = new ArrayList<>(HISTORY_CHUNK_SIZE);
+                chunkBytes = 0;
+            }
+        }
+        if (!chunk.isEmpty()) {
+            sink.acceptEncoded(chunk);
         }
     }
 }
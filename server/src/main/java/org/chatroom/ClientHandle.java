@@ -1,44 +1,60 @@
 package org.chatroom;
 
-import org.apache.commons.lang3.SerializationUtils;
-
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.Serializable;
-import java.net.Socket;
-import java.util.Date;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.List;
 
 public class ClientHandle implements Runnable {
-    private final Socket client;
-    private final DataOutputStream messageOut;
+    // Set to "off" to refuse compression to clients that offer it.
+    public static boolean COMPRESSION = !"off".equals(System.getenv("COMPRESSION"));
+    private static final int MAX_ROOM_LENGTH = 64;
+    private static final int MAX_SEARCH_LIMIT = 100;
+
+    private final SocketChannel client;
+    private final IngestRing<Frame> messageOut;
 
-    public ClientHandle(Socket client, DataOutputStream messageOut) {
+    public ClientHandle(SocketChannel client, IngestRing<Frame> messageOut) {
         this.client = client;
         this.messageOut = messageOut;
     }
 
     @Override
     public void run() {
-        String username;
+        Session session;
         DataInputStream in;
+        TrafficStats traffic = new TrafficStats();
         try {
-            in = new DataInputStream(client.getInputStream());
-            DataOutputStream out = new DataOutputStream(client.getOutputStream());
-            Date lastSyncTime = new Date(in.readLong());
-            byte[] messages = SerializationUtils.serialize((Serializable) ChatServer.loadMessages(lastSyncTime));
-            out.writeInt(messages.length);
-            out.write(messages);
+            in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+            // One room per connection, chosen before history is synced.
+            String roomName = Handshake.readString(in);
+            if (roomName.isEmpty() || roomName.length() > MAX_ROOM_LENGTH) {
+                System.err.println("Rejecting client with invalid room name");
+                client.close();
+                return;
+            }
+            Room room = ChatServer.room(roomName);
+            long lastSeq = in.readLong();
+            // The client offers capabilities, we answer with the ones both sides use.
+            int capabilities = in.readInt();
+            boolean compress = COMPRESSION && (capabilities & Compression.DEFLATE) != 0;
+            out.writeInt(compress ? Compression.DEFLATE : 0);
             out.flush();
+            // Opened before history is read, so nothing fanned out until registration is lost.
+            Room.Backlog backlog = room.openBacklog();
+            try {
+                long historySeq = sendHistory(room, lastSeq, in, out, compress, traffic);
 
-            int length = in.readInt();
-            byte[] data = new byte[length];
-            in.readFully(data);
-            username = SerializationUtils.deserialize(data);
-            if (!ChatServer.registerClient(username, out)) {
-                out.write(0);
-                out.flush();
-                return;
+                String username = Handshake.readString(in);
+                session = new Session(username, room, client, out, compress, traffic);
+                if (!ChatServer.registerClient(session, backlog, historySeq)) {
+                    out.write(0);
+                    out.flush();
+                    return;
+                }
+            } finally {
+                room.closeBacklog(backlog);
             }
         } catch (Exception e) {
             System.err.println("Failed to handle client: " + e.getMessage());
@@ -47,22 +63,155 @@ public class ClientHandle implements Runnable {
 
         try {
             while (true) {
-                int length = in.readInt();
-                byte[] data = new byte[length];
-                in.readFully(data);
-                synchronized (messageOut) {
-                    messageOut.writeInt(data.length);
-                    messageOut.write(data);
+                Frame frame = Frame.read(in, traffic);
+                if (frame.kind() == Protocol.FETCH_BLOB) {
+                    sendBlob(session, Protocol.hash(frame.payload()));
+                    continue;
+                }
+                if (frame.kind() == Protocol.SEARCH) {
+                    search(session, frame.payload());
+                    continue;
+                }
+                Message message = frame.message();
+                if (!message.room.equals(session.room().name())) {
+                    System.err.println("Dropping message from " + session.username() + " to room " + message.room + " it has not joined");
+                    continue;
                 }
+                if (message.content instanceof byte[] image) {
+                    // Uploads are stored here, on the client's own thread, and only the
+                    // reference travels on to the broadcaster and the other clients.
+                    message.content = ChatServer.blobStore().put(image);
+                    frame = Frame.of(message);
+                } else if (message.content instanceof ImageRef ref && !ChatServer.blobStore().exists(ref.hash)) {
+                    System.err.println("Dropping image message with unknown blob " + ref.hash);
+                    continue;
+                }
+                messageOut.put(frame);
             }
+        } catch (EOFException e) {
+            // The client disconnected.
         } catch (IOException e) {
-            if (!e.getMessage().equals("Connection reset")) {
+            if (!"Connection reset".equals(e.getMessage())) {
                 System.err.println("Failed to read message: " + e.getMessage());
             }
         } catch (Exception e) {
             System.err.println("Failed handle client: " + e.getMessage());
         } finally {
-            ChatServer.unregisterClient(username);
+            ChatServer.unregisterClient(session);
+            System.out.println("Client " + session.username() + " left, " + traffic);
+        }
+    }
+
+    private static void sendBlob(Session session, String hash) throws IOException {
+        byte[] data = ChatServer.blobStore().get(hash);
+        session.offer(Frame.of(Protocol.blob(hash, data == null ? new byte[0] : data)));
+    }
+
+    // Searches are answered on the client's own thread, like blob fetches. One extra match is
+    // asked for to tell whether there is a next page.
+    private static void search(Session session, byte[] request) throws IOException {
+        long start = System.nanoTime();
+        int offset = Math.max(0, Protocol.searchOffset(request));
+        int limit = Math.clamp(Protocol.searchLimit(request), 1, MAX_SEARCH_LIMIT);
+        List<Message> matches = ChatServer.store().search(session.room().name(), Protocol.searchQuery(request), offset, limit + 1);
+        boolean more = matches.size() > limit;
+        session.offer(Frame.of(Protocol.searchResult(Protocol.searchId(request), more, more ? matches.subList(0, limit) : matches)));
+        Metrics.searchLatency.recordSince(start);
+    }
+
+    // Returns the seq of the last message sent, lastSeq if there was none.
+    private static long sendHistory(Room room, long lastSeq, DataInputStream in, DataOutputStream out,
+                                    boolean compress, TrafficStats traffic) throws IOException {
+        long start = System.nanoTime();
+        HistoryWriter writer = new HistoryWriter(in, out, compress, traffic, lastSeq);
+        ChatServer.streamHistory(room, lastSeq, writer);
+        writer.finish();
+        Metrics.historyLatency.recordSince(start);
+        Metrics.historyMessages.record(writer.messages);
+        return writer.lastSeq;
+    }
+
+    // History goes out as a series of chunk frames ended by an empty one. The client grants an
+    // initial window of chunks and one more credit for every chunk it has applied, so the
+    // server never runs more than a window ahead of it.
+    private static final class HistoryWriter implements ChatServer.HistorySink {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final boolean compress;
+        private final TrafficStats traffic;
+        private int credits;
+        private int sent;
+        private int acked;
+        private long messages;
+        private long lastSeq;
+
+        HistoryWriter(DataInputStream in, DataOutputStream out, boolean compress, TrafficStats traffic, long lastSeq) throws IOException {
+            this.in = in;
+            this.lastSeq = lastSeq;
+            this.out = out;
+            this.compress = compress;
+            this.traffic = traffic;
+            this.credits = in.readInt();
+        }
+
+        @Override
+        public void accept(List<Message> chunk) throws IOException {
+            awaitCredit();
+            writeChunk(chunk);
+            sent++;
+            messages += chunk.size();
+            lastSeq = Math.max(lastSeq, chunk.getLast().seq);
+        }
+
+        @Override
+        public void acceptEncoded(List<Frame> chunk) throws IOException {
+            awaitCredit();
+            int length = MessageCodec.varLongSize(chunk.size());
+            for (Frame frame : chunk) {
+                length += MessageCodec.varLongSize(frame.payloadLength()) + frame.payloadLength();
+            }
+            // Written straight from the cached frames unless it has to be compressed as a whole.
+            ByteArrayOutputStream buffer = compress ? new ByteArrayOutputStream(length) : null;
+            DataOutputStream target = compress ? new DataOutputStream(buffer) : out;
+            byte[] header = new byte[MessageCodec.varLongSize(Integer.MAX_VALUE)];
+            if (!compress) {
+                out.writeInt(length);
+                traffic.rawOut.add(4 + length);
+                traffic.wireOut.add(4 + length);
+            }
+            target.write(header, 0, MessageCodec.putVarLong(header, 0, chunk.size()));
+            for (Frame frame : chunk) {
+                target.write(header, 0, MessageCodec.putVarLong(header, 0, frame.payloadLength()));
+                frame.writePayload(target);
+            }
+            if (compress) {
+                Compression.writeFrame(out, buffer.toByteArray(), true, traffic);
+            }
+            out.flush();
+            sent++;
+            messages += chunk.size();
+            lastSeq = Math.max(lastSeq, chunk.getLast().message().seq);
+        }
+
+        void finish() throws IOException {
+            writeChunk(List.of());
+            // Every non-empty chunk is answered with a credit, consume the ones still in flight.
+            for (; acked < sent; acked++) {
+                in.readInt();
+            }
+        }
+
+        private void awaitCredit() throws IOException {
+            while (credits == 0) {
+                credits += in.readInt();
+                acked++;
+            }
+            credits--;
+        }
+
+        private void writeChunk(List<Message> chunk) throws IOException {
+            Compression.writeFrame(out, MessageCodec.encodeList(chunk), compress, traffic);
+            out.flush();
         }
     }
 }
@@ -0,0 +1,285 @@
+package org.chatroom;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Node-to-node bus of a server cluster. Every room is owned by one live node, picked by
+// rendezvous hashing over the live nodes. The owner stamps seq, persists the room's messages
+// and publishes them to every other node, which deliver them to their own sessions. A message
+// posted on a node that does not own its room is forwarded to the owner.
+//
+// A peer counts as live while our outbound connection to it is up. Each node only sees its
+// own connections, so two nodes can briefly both consider themselves the owner of a room. The
+// store claim in ChatServer.broadcast keeps them from both saving, and so delivering, a seq.
+// When a peer goes away its rooms move to the remaining nodes, and messages still queued to
+// it for stamping are routed again. Its clients reconnect to another node and resync by seq.
+//
+// Each peer's queue is bounded. A peer that falls that far behind is disconnected and counts
+// as gone until we reconnect, its clients find the gap in seqs and resync.
+//
+// Usernames are only unique per node, not across the cluster.
+//
+// Bus frames are length-prefixed: kind:u8 followed by a client frame payload.
+public class ClusterBus {
+    // Bus addresses of all nodes, host:port separated by commas, in the same order on every node.
+    public static String NODES = System.getenv().getOrDefault("CLUSTER_NODES", "");
+    // Index of this node in CLUSTER_NODES.
+    public static int NODE_ID = Integer.parseInt(System.getenv().getOrDefault("NODE_ID", "0"));
+    private static final int BATCH = 256;
+    private static final long HEARTBEAT_MS = 500;
+    private static final long RECONNECT_MS = 1000;
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final byte HEARTBEAT = 0;
+    private static final byte FORWARD = 1;
+    private static final byte PUBLISH = 2;
+
+    public interface Handler {
+        // A client message forwarded to us as the room owner, not stamped yet.
+        void forwarded(Frame frame) throws InterruptedException;
+
+        // A message stamped by the owner of its room.
+        void published(Frame frame);
+    }
+
+    private record Outbound(byte kind, Frame frame) {
+    }
+
+    private final int self;
+    private final String[] addresses;
+    // Indexed by node id, null for this node.
+    private final Peer[] peers;
+    private final Handler handler;
+
+    public ClusterBus(String nodes, int self, Handler handler) {
+        this.addresses = nodes.split(",");
+        this.self = self;
+        this.handler = handler;
+        this.peers = new Peer[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            if (i != self) {
+                peers[i] = new Peer(i, addresses[i].trim());
+            }
+        }
+    }
+
+    public void start() throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.bind(address(addresses[self].trim()));
+        Thread.ofPlatform().name("bus-accept").daemon().start(() -> {
+            try {
+                while (true) {
+                    Socket socket = server.accept();
+                    Thread.ofPlatform().name("bus-reader").daemon().start(() -> read(socket));
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to accept node: " + e.getMessage());
+            }
+        });
+        for (Peer peer : peers) {
+            if (peer != null) {
+                Thread.ofPlatform().name("bus-" + peer.id).daemon().start(peer::run);
+            }
+        }
+    }
+
+    public int self() {
+        return self;
+    }
+
+    public int nodes() {
+        return addresses.length;
+    }
+
+    public int liveNodes() {
+        int live = 1;
+        for (Peer peer : peers) {
+            if (peer != null && peer.up) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    // Highest random weight: the live node with the highest hash of (room, node) owns the room,
+    // so only the rooms of a leaving node move.
+    public int owner(String room) {
+        int owner = self;
+        long best = weight(room, self);
+        for (Peer peer : peers) {
+            if (peer != null && peer.up) {
+                long weight = weight(room, peer.id);
+                if (weight > best) {
+                    best = weight;
+                    owner = peer.id;
+                }
+            }
+        }
+        return owner;
+    }
+
+    // Never blocks, it is called by the broadcaster, which is the only one draining the
+    // ingest ring. Returns false if the node went away or is too far behind and no longer
+    // counts as live, the caller then routes the frame again.
+    public boolean forward(int node, Frame frame) {
+        Peer peer = peers[node];
+        if (peer == null || !peer.up) {
+            return false;
+        }
+        if (!peer.queue.offer(new Outbound(FORWARD, frame))) {
+            peer.overflow();
+            return false;
+        }
+        return true;
+    }
+
+    public void publish(Frame frame) {
+        for (Peer peer : peers) {
+            if (peer != null && peer.up && !peer.queue.offer(new Outbound(PUBLISH, frame))) {
+                peer.overflow();
+            }
+        }
+    }
+
+    private void read(Socket socket) {
+        int node = -1;
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            node = in.readInt();
+            while (true) {
+                int length = in.readInt();
+                // A kind byte and at most a client frame, else the stream is out of step.
+                if (length < 1 || length - 1 > Compression.MAX_FRAME) {
+                    throw new IOException("Invalid bus frame length " + length);
+                }
+                byte kind = in.readByte();
+                byte[] payload = new byte[length - 1];
+                in.readFully(payload);
+                switch (kind) {
+                    case FORWARD -> handler.forwarded(Frame.of(payload));
+                    case PUBLISH -> handler.published(Frame.of(payload));
+                    default -> {
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            // The node closed the connection.
+        } catch (IOException e) {
+            System.err.println("Failed to read from node " + node + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static long weight(String room, int node) {
+        long h = room.hashCode() * 0x9E3779B97F4A7C15L + node;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static InetSocketAddress address(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        return new InetSocketAddress(hostPort.substring(0, colon), Integer.parseInt(hostPort.substring(colon + 1)));
+    }
+
+    // Outbound connection to one node. A single thread writes its queue in batches with one
+    // flush per batch, and sends heartbeats while idle so a dead peer is noticed promptly.
+    private final class Peer {
+        final int id;
+        final String hostPort;
+        final LinkedBlockingQueue<Outbound> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        volatile boolean up;
+        private volatile Socket socket;
+
+        Peer(int id, String hostPort) {
+            this.id = id;
+            this.hostPort = hostPort;
+        }
+
+        // Takes the peer out of ownership at once, the writer thread then fails on the
+        // closed socket and routes what is queued again.
+        void overflow() {
+            if (up) {
+                up = false;
+                System.err.println("Node " + id + " is " + QUEUE_CAPACITY + " frames behind, disconnecting");
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        void run() {
+            List<Outbound> batch = new ArrayList<>(BATCH);
+            while (true) {
+                boolean joined = false;
+                try (Socket socket = new Socket()) {
+                    this.socket = socket;
+                    socket.connect(address(hostPort));
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    out.writeInt(self);
+                    out.flush();
+                    up = true;
+                    joined = true;
+                    System.out.println("Node " + id + " joined");
+                    while (true) {
+                        Outbound first = queue.poll(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+                        if (first == null) {
+                            out.writeInt(1);
+                            out.writeByte(HEARTBEAT);
+                        } else {
+                            batch.add(first);
+                            queue.drainTo(batch, BATCH - 1);
+                            for (Outbound outbound : batch) {
+                                out.writeInt(1 + outbound.frame.payloadLength());
+                                out.writeByte(outbound.kind);
+                                outbound.frame.writePayload(out);
+                            }
+                        }
+                        out.flush();
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    if (joined) {
+                        up = false;
+                        System.err.println("Node " + id + " left: " + e.getMessage());
+                        reroute(batch);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                batch.clear();
+                try {
+                    Thread.sleep(RECONNECT_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        // Messages that may not have reached the node are stamped by the new owners instead.
+        // Published frames are dropped, the node's clients resync when they reconnect.
+        private void reroute(List<Outbound> batch) {
+            queue.drainTo(batch);
+            try {
+                for (Outbound outbound : batch) {
+                    if (outbound.kind == FORWARD) {
+                        handler.forwarded(outbound.frame);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
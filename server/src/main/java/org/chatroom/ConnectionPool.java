@@ -0,0 +1,204 @@
+package org.chatroom;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A small fixed-size JDBC pool. Connections are opened lazily, validated when they have been
+// idle for a while, and each keeps its own cache of prepared statements.
+public class ConnectionPool {
+    public static int POOL_SIZE = Integer.parseInt(System.getenv().getOrDefault("DB_POOL_SIZE", "8"));
+    public static long ACQUIRE_TIMEOUT_MS = Long.parseLong(System.getenv().getOrDefault("DB_ACQUIRE_TIMEOUT_MS", "30000"));
+    private static final long VALIDATE_AFTER_MS = 30_000;
+    private static final int VALIDATE_TIMEOUT_S = 2;
+    private static final long SLOW_ACQUIRE_MS = 1000;
+
+    public final class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private long releasedAt = System.currentTimeMillis();
+        private boolean broken;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        public Connection connection() {
+            return connection;
+        }
+
+        // Returns the cached statement for sql. Callers must not close it.
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement stmt = statements.get(sql);
+            if (stmt == null) {
+                stmt = connection.prepareStatement(sql);
+                statements.put(sql, stmt);
+            }
+            return stmt;
+        }
+
+        // Drops the connection instead of returning it to the pool if e is a connection error.
+        public void failed(SQLException e) {
+            String state = e.getSQLState();
+            if (state == null || state.startsWith("08")) {
+                broken = true;
+            }
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    private final String url;
+    private final int size;
+    private final BlockingQueue<PooledConnection> idle;
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong replaced = new AtomicLong();
+
+    public ConnectionPool(String url) {
+        this(url, POOL_SIZE);
+    }
+
+    public ConnectionPool(String url, int size) {
+        this.url = url;
+        this.size = size;
+        this.idle = new ArrayBlockingQueue<>(size);
+    }
+
+    public PooledConnection acquire() throws SQLException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(ACQUIRE_TIMEOUT_MS);
+        PooledConnection pooled;
+        while ((pooled = idle.poll()) == null && (pooled = open()) == null) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new SQLException("Timed out waiting for a connection, " + this);
+            }
+            try {
+                // Short polls so a slot freed by a discarded connection is picked up by open().
+                pooled = idle.poll(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(100)), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a connection");
+            }
+            if (pooled != null) {
+                break;
+            }
+        }
+        pooled = validate(pooled);
+
+        long waited = System.nanoTime() - start;
+        waitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        acquired.incrementAndGet();
+        active.incrementAndGet();
+        if (TimeUnit.NANOSECONDS.toMillis(waited) > SLOW_ACQUIRE_MS) {
+            System.err.println("Slow connection acquire: " + this);
+        }
+        return pooled;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int created() {
+        return created.get();
+    }
+
+    public int active() {
+        return active.get();
+    }
+
+    public int idle() {
+        return idle.size();
+    }
+
+    public long acquired() {
+        return acquired.get();
+    }
+
+    public long averageWaitMicros() {
+        long count = acquired.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(waitNanos.get() / count);
+    }
+
+    public long maxWaitMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxWaitNanos.get());
+    }
+
+    public long replaced() {
+        return replaced.get();
+    }
+
+    @Override
+    public String toString() {
+        return "pool[active=" + active() + ", idle=" + idle() + ", created=" + created() + "/" + size
+                + ", acquired=" + acquired() + ", avgWait=" + averageWaitMicros() + "us"
+                + ", maxWait=" + maxWaitMicros() + "us, replaced=" + replaced() + "]";
+    }
+
+    // Opens a new connection if the pool has not reached its size yet, otherwise returns null.
+    private PooledConnection open() throws SQLException {
+        if (created.incrementAndGet() > size) {
+            created.decrementAndGet();
+            return null;
+        }
+        try {
+            return new PooledConnection(DriverManager.getConnection(url));
+        } catch (SQLException e) {
+            created.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private PooledConnection validate(PooledConnection pooled) throws SQLException {
+        if (System.currentTimeMillis() - pooled.releasedAt < VALIDATE_AFTER_MS) {
+            return pooled;
+        }
+        if (pooled.connection.isValid(VALIDATE_TIMEOUT_S)) {
+            return pooled;
+        }
+        discard(pooled);
+        replaced.incrementAndGet();
+        PooledConnection fresh = open();
+        if (fresh == null) {
+            throw new SQLException("Failed to replace a broken connection, " + this);
+        }
+        return fresh;
+    }
+
+    private void release(PooledConnection pooled) {
+        active.decrementAndGet();
+        if (pooled.broken) {
+            discard(pooled);
+            replaced.incrementAndGet();
+            return;
+        }
+        pooled.releasedAt = System.currentTimeMillis();
+        idle.offer(pooled);
+    }
+
+    private void discard(PooledConnection pooled) {
+        created.decrementAndGet();
+        try {
+            pooled.connection.close();
+        } catch (SQLException e) {
+            System.err.println("Failed to close connection: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.chatroom;
+
+import java.io.IOException;
+import java.io.Serial;
+
+// A batch was refused because a room in it has been claimed by a newer owner, see
+// MessageStore.claim.
+public class FencedException extends IOException {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final String room;
+
+    public FencedException(String room) {
+        super("Room " + room + " has been claimed by another owner");
+        this.room = room;
+    }
+
+    public String room() {
+        return room;
+    }
+}
@@ -0,0 +1,120 @@
+package org.chatroom;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// A length-prefixed wire frame, encoded once and shared by every recipient. Sessions write
+// independent duplicates of the same read-only buffer, so fan-out never copies the payload.
+// The compressed form is likewise computed once, by the first session that needs it.
+public final class Frame {
+    private final byte[] data;
+    private final ByteBuffer buffer;
+    // The buffer itself if the frame does not compress, null until computed.
+    private volatile ByteBuffer compressed;
+
+    private Frame(byte[] data) {
+        this.data = data;
+        this.buffer = ByteBuffer.wrap(data).asReadOnlyBuffer();
+    }
+
+    // Reads the next frame into a buffer that already holds its length prefix, so the
+    // inbound bytes can be forwarded as-is. Compressed frames are inflated first.
+    public static Frame read(DataInputStream in, TrafficStats stats) throws IOException {
+        int prefix = in.readInt();
+        int length = Compression.bodyLength(prefix);
+        if ((prefix & Compression.COMPRESSED) != 0) {
+            byte[] body = new byte[length];
+            in.readFully(body);
+            long start = System.nanoTime();
+            Frame frame = of(Compression.decompress(body));
+            stats.inflateNanos.add(System.nanoTime() - start);
+            stats.wireIn.add(4 + body.length);
+            stats.rawIn.add(frame.size());
+            return frame;
+        }
+        byte[] data = new byte[4 + length];
+        ByteBuffer.wrap(data).putInt(length);
+        in.readFully(data, 4, length);
+        stats.wireIn.add(data.length);
+        stats.rawIn.add(data.length);
+        return new Frame(data);
+    }
+
+    public static Frame of(Message message) {
+        byte[] data = MessageCodec.encode(message, 4);
+        ByteBuffer.wrap(data).putInt(data.length - 4);
+        return new Frame(data);
+    }
+
+    public static Frame of(byte[] payload) {
+        byte[] data = new byte[4 + payload.length];
+        ByteBuffer.wrap(data).putInt(payload.length).put(payload);
+        return new Frame(data);
+    }
+
+    // Copies the remaining bytes of payload, e.g. a record of a mapped log segment.
+    public static Frame of(ByteBuffer payload) {
+        byte[] data = new byte[4 + payload.remaining()];
+        ByteBuffer.wrap(data).putInt(payload.remaining()).put(payload);
+        return new Frame(data);
+    }
+
+    public int size() {
+        return data.length;
+    }
+
+    // The first payload byte, a Protocol frame kind or a message codec version.
+    public byte kind() {
+        return data[4];
+    }
+
+    public byte[] payload() {
+        return Arrays.copyOfRange(data, 4, data.length);
+    }
+
+    public int payloadLength() {
+        return data.length - 4;
+    }
+
+    public void writePayload(DataOutputStream out) throws IOException {
+        out.write(data, 4, data.length - 4);
+    }
+
+    public Message message() {
+        return MessageCodec.decode(data, 4, data.length - 4);
+    }
+
+    // A fresh view with its own position over the shared bytes.
+    public ByteBuffer buffer() {
+        return buffer.duplicate();
+    }
+
+    // Like buffer(), but compressed when that pays off. Images are already compressed and
+    // skipped. The time spent compressing is charged to stats of the session that got here first.
+    public ByteBuffer compressedBuffer(TrafficStats stats) {
+        ByteBuffer result = compressed;
+        if (result == null) {
+            synchronized (this) {
+                result = compressed;
+                if (result == null) {
+                    byte[] frame = null;
+                    if (!isImage()) {
+                        long start = System.nanoTime();
+                        frame = Compression.compress(data, 4, data.length - 4);
+                        stats.deflateNanos.add(System.nanoTime() - start);
+                    }
+                    result = frame == null ? buffer : ByteBuffer.wrap(frame).asReadOnlyBuffer();
+                    compressed = result;
+                }
+            }
+        }
+        return result.duplicate();
+    }
+
+    private boolean isImage() {
+        return kind() == Protocol.BLOB || (data.length > 5 && data[5] == MessageCodec.IMAGE);
+    }
+}
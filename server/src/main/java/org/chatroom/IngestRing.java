@@ -0,0 +1,98 @@
+package org.chatroom;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+// Multi-producer, single-consumer ring of already-framed messages. Producers claim a slot
+// with a CAS on the head sequence and publish by storing into it, the consumer drains every
+// published slot in one pass. There is no shared lock and no byte copying on the way in.
+public class IngestRing<T> {
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+    private volatile Thread waitingConsumer;
+
+    public IngestRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public int size() {
+        return (int) (head.get() - tail);
+    }
+
+    // Blocks while the ring is full, which pushes back on the reading client.
+    public void put(T item) throws InterruptedException {
+        long seq;
+        int spins = 0;
+        while (true) {
+            seq = head.get();
+            if (seq - tail >= slots.length()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (++spins < SPINS) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+            } else if (head.compareAndSet(seq, seq + 1)) {
+                break;
+            }
+        }
+        slots.set((int) seq & mask, item);
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    // Waits until at least one item is published, then hands up to maxBatch items to sink in
+    // order. Must only be called from a single consumer thread.
+    public int drainTo(Consumer<? super T> sink, int maxBatch) throws InterruptedException {
+        long next = tail;
+        int index = (int) next & mask;
+        int spins = 0;
+        while (slots.get(index) == null) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (++spins < SPINS) {
+                Thread.onSpinWait();
+                continue;
+            }
+            waitingConsumer = Thread.currentThread();
+            if (slots.get(index) == null) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            waitingConsumer = null;
+        }
+
+        int count = 0;
+        T item;
+        try {
+            while (count < maxBatch && (item = slots.get(index)) != null) {
+                slots.lazySet(index, null);
+                next++;
+                count++;
+                index = (int) next & mask;
+                sink.accept(item);
+            }
+        } finally {
+            tail = next;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,367 @@
+package org.chatroom;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Messages in the text_msg and image_msg tables, blobs in blob, see the schema in the README.
+// Room claims of a cluster are epochs in room_epoch. An append locks the epoch rows of its
+// rooms and a claim updates them, so the two are ordered by the database.
+// SQL errors surface as IOExceptions carrying the SQLException as their cause.
+public class JdbcMessageStore implements MessageStore {
+    private static final String UNIQUE_VIOLATION = "23505";
+    private static final String TEXT_SQL = "INSERT INTO text_msg (room, seq, client_id, username, date, text) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String IMAGE_SQL = "INSERT INTO image_msg (room, seq, client_id, username, date, hash, size, width, height) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final ConnectionPool pool;
+    // Whether the database is PostgreSQL, null until the first search.
+    private volatile Boolean postgres;
+
+    public JdbcMessageStore(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    // One JDBC batch per message kind, in one transaction.
+    @Override
+    public void append(List<Message> messages, Map<String, Long> epochs) throws IOException {
+        try (ConnectionPool.PooledConnection pooled = pool.acquire()) {
+            Connection connection = pooled.connection();
+            PreparedStatement textStmt = pooled.prepare(TEXT_SQL);
+            PreparedStatement imageStmt = pooled.prepare(IMAGE_SQL);
+            connection.setAutoCommit(false);
+            try {
+                // In name order, so two nodes appending to the same rooms cannot deadlock.
+                for (Map.Entry<String, Long> entry : new TreeMap<>(epochs).entrySet()) {
+                    PreparedStatement stmt = pooled.prepare("SELECT epoch FROM room_epoch WHERE room = ? FOR UPDATE");
+                    stmt.setString(1, entry.getKey());
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (!rs.next() || rs.getLong(1) != entry.getValue()) {
+                            connection.rollback();
+                            throw new FencedException(entry.getKey());
+                        }
+                    }
+                }
+                boolean texts = false;
+                boolean images = false;
+                for (Message message : messages) {
+                    if (message.content instanceof String) {
+                        textStmt.setString(1, message.room);
+                        textStmt.setLong(2, message.seq);
+                        textStmt.setLong(3, message.id);
+                        textStmt.setString(4, message.username);
+                        textStmt.setLong(5, message.date.getTime());
+                        textStmt.setString(6, (String) message.content);
+                        textStmt.addBatch();
+                        texts = true;
+                    } else {
+                        ImageRef ref = (ImageRef) message.content;
+                        imageStmt.setString(1, message.room);
+                        imageStmt.setLong(2, message.seq);
+                        imageStmt.setLong(3, message.id);
+                        imageStmt.setString(4, message.username);
+                        imageStmt.setLong(5, message.date.getTime());
+                        imageStmt.setString(6, ref.hash);
+                        imageStmt.setInt(7, ref.size);
+                        imageStmt.setInt(8, ref.width);
+                        imageStmt.setInt(9, ref.height);
+                        imageStmt.addBatch();
+                        images = true;
+                    }
+                }
+                if (texts) {
+                    textStmt.executeBatch();
+                }
+                if (images) {
+                    imageStmt.executeBatch();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                pooled.failed(e);
+                textStmt.clearBatch();
+                imageStmt.clearBatch();
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw rejected(e) ? new RejectedBatchException(e.getMessage(), e) : failure(e);
+        }
+    }
+
+    // Anything but a connection, transaction rollback, resource or operator error is caused
+    // by the data, e.g. 22021 for a NUL character in text or a constraint violation. A pool
+    // timeout has no state.
+    private static boolean rejected(SQLException e) {
+        String state = e.getSQLState();
+        if (state == null || e instanceof SQLTransientException || e instanceof SQLRecoverableException) {
+            return false;
+        }
+        return !(state.startsWith("08") || state.startsWith("40") || state.startsWith("53") || state.startsWith("57"));
+    }
+
+    @Override
+    public long claim(String room) throws IOException {
+        try (ConnectionPool.PooledConnection pooled = pool.acquire()) {
+            Connection connection = pooled.connection();
+            connection.setAutoCommit(false);
+            try {
+                // The first claim of a room inserts its row. If another node inserts it at the
+                // same time, the unique violation rolls this one back and the update then works.
+                for (int attempt = 0; ; attempt++) {
+                    try {
+                        PreparedStatement update = pooled.prepare("UPDATE room_epoch SET epoch = epoch + 1 WHERE room = ?");
+                        update.setString(1, room);
+                        if (update.executeUpdate() == 0) {
+                            PreparedStatement insert = pooled.prepare("INSERT INTO room_epoch (room, epoch) VALUES (?, 1)");
+                            insert.setString(1, room);
+                            insert.executeUpdate();
+                        }
+                        PreparedStatement select = pooled.prepare("SELECT epoch FROM room_epoch WHERE room = ?");
+                        select.setString(1, room);
+                        long epoch;
+                        try (ResultSet rs = select.executeQuery()) {
+                            rs.next();
+                            epoch = rs.getLong(1);
+                        }
+                        connection.commit();
+                        return epoch;
+                    } catch (SQLException e) {
+                        connection.rollback();
+                        if (attempt > 0 || !UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                            pooled.failed(e);
+                            throw e;
+                        }
+                    }
+                }
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public long maxSeq(String room) throws IOException {
+        String sql = "SELECT (SELECT MAX(seq) FROM text_msg WHERE room = ?), (SELECT MAX(seq) FROM image_msg WHERE room = ?)";
+        try (ConnectionPool.PooledConnection pooled = pool.acquire()) {
+            try {
+                PreparedStatement stmt = pooled.prepare(sql);
+                stmt.setString(1, room);
+                stmt.setString(2, room);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? Math.max(rs.getLong(1), rs.getLong(2)) : 0;
+                }
+            } catch (SQLException e) {
+                pooled.failed(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw failure(e);
+        }
+    }
+
+    // Read a page at a time with a keyset query, each page on its own short borrow of a
+    // connection. The connection is back in the pool before the sink waits on the client.
+    @Override
+    public void stream(String room, long afterSeq, long beforeSeq, ChatServer.HistorySink sink) throws IOException {
+        String sql = """
+                SELECT * FROM (SELECT seq, username, date, text, NULL AS hash, NULL AS size, NULL AS width, NULL AS height, client_id
+                FROM text_msg WHERE room = ? AND seq > ? AND seq < ? ORDER BY seq LIMIT ?) t
+                UNION ALL
+                SELECT * FROM (SELECT seq, username, date, NULL, hash, size, width, height, client_id
+                FROM image_msg WHERE room = ? AND seq > ? AND seq < ? ORDER BY seq LIMIT ?) i
+                ORDER BY seq LIMIT ?
+                """;
+        int pageSize = ChatServer.HISTORY_CHUNK_SIZE;
+        List<Message> page;
+        do {
+            page = new ArrayList<>(pageSize);
+            try (ConnectionPool.PooledConnection pooled = pool.acquire()) {
+                try {
+                    PreparedStatement stmt = pooled.prepare(sql);
+                    for (int offset : new int[]{0, 4}) {
+                        stmt.setString(offset + 1, room);
+                        stmt.setLong(offset + 2, afterSeq);
+                        stmt.setLong(offset + 3, beforeSeq);
+                        stmt.setInt(offset + 4, pageSize);
+                    }
+                    stmt.setInt(9, pageSize);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            Message message = new Message();
+                            message.room = room;
+                            message.seq = rs.getLong(1);
+                            message.username = rs.getString(2);
+                            message.date = new Date(rs.getLong(3));
+                            String text = rs.getString(4);
+                            message.content = text != null ? text : new ImageRef(rs.getString(5), rs.getInt(6), rs.getInt(7), rs.getInt(8));
+                            message.id = rs.getLong(9);
+                            page.add(message);
+                        }
+                    }
+                } catch (SQLException e) {
+                    pooled.failed(e);
+                    throw e;
+                }
+            } catch (SQLException e) {
+                throw failure(e);
+            }
+            List<Message> chunk = new ArrayList<>(page.size());
+            long chunkBytes = 0;
+            for (Message message : page) {
+                chunk.add(message);
+                if (message.content instanceof String text) {
+                    chunkBytes += text.length();
+                }
+                if (chunkBytes >= ChatServer.HISTORY_CHUNK_BYTES) {
+                    sink.accept(chunk);
+                    chunk = new ArrayList<>(page.size());
+                    chunkBytes = 0;
+                }
+            }
+            if (!chunk.isEmpty()) {
+                sink.accept(chunk);
+            }
+            if (!page.isEmpty()) {
+                afterSeq = page.getLast().seq;
+            }
+        } while (page.size() == pageSize);
+    }
+
+    // PostgreSQL full-text search, served by the text_msg_fts index and ranked by ts_rank.
+    // Other databases, like the embedded H2 of the load generator, fall back to an unindexed
+    // scan for every word, newest first.
+    @Override
+    public List<Message> search(String room, String query, int offset, int limit) throws IOException {
+        List<String> words = SearchIndex.words(query);
+        if (words.isEmpty()) {
+            return List.of();
+        }
+        try (ConnectionPool.PooledConnection pooled = pool.acquire()) {
+            try {
+                if (postgres == null) {
+                    postgres = "PostgreSQL".equals(pooled.connection().getMetaData().getDatabaseProductName());
+                }
+                PreparedStatement stmt;
+                int pos = 1;
+                if (postgres) {
+                    stmt = pooled.prepare("""
+                            SELECT seq, username, date, text FROM text_msg, plainto_tsquery('simple', ?) AS query
+                            WHERE room = ? AND to_tsvector('simple', text) @@ query
+                            ORDER BY ts_rank(to_tsvector('simple', text), query) DESC, seq DESC
+                            LIMIT ? OFFSET ?
+                            """);
+                    stmt.setString(pos++, String.join(" ", words));
+                    stmt.setString(pos++, room);
+                } else {
+                    stmt = pooled.prepare("SELECT seq, username, date, text FROM text_msg WHERE room = ?"
+                            + " AND LOWER(text) LIKE ?".repeat(words.size()) + " ORDER BY seq DESC LIMIT ? OFFSET ?");
+                    stmt.setString(pos++, room);
+                    // Words are letters and digits only, nothing to escape.
+                    for (String word : words) {
+                        stmt.setString(pos++, "%" + word + "%");
+                    }
+                }
+                stmt.setInt(pos++, limit);
+                stmt.setInt(pos, offset);
+                List<Message> messages = new ArrayList<>();
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        Message message = new Message();
+                        message.room = room;
+                        message.seq = rs.getLong(1);
+                        message.username = rs.getString(2);
+                        message.date = new Date(rs.getLong(3));
+                        message.content = rs.getString(4);
+                        messages.add(message);
+                    }
+                }
+                return messages;
+            } catch (SQLException e) {
+                pooled.failed(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw failure(e);
+        }
+    }
+
+    // Plain SQL rather than ON CONFLICT, so embedded databases work too. Two uploads of the
+    // same image can both insert, the unique violation of the second is ignored.
+    @Override
+    public void putBlob(String hash, byte[] data) throws IOException {
+        String sql = "INSERT INTO blob (hash, data) SELECT ?, ? WHERE NOT EXISTS (SELECT 1 FROM blob WHERE hash = ?)";
+        try (ConnectionPool.PooledConnection pooled = pool.acquire()) {
+            try {
+                PreparedStatement stmt = pooled.prepare(sql);
+                stmt.setString(1, hash);
+                stmt.setBytes(2, data);
+                stmt.setString(3, hash);
+                stmt.executeUpdate();
+            } catch (SQLException e) {
+                if (!UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                    pooled.failed(e);
+                    throw e;
+                }
+            }
+        } catch (SQLException e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public boolean hasBlob(String hash) throws IOException {
+        try (ConnectionPool.PooledConnection pooled = pool.acquire()) {
+            try {
+                PreparedStatement stmt = pooled.prepare("SELECT 1 FROM blob WHERE hash = ?");
+                stmt.setString(1, hash);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next();
+                }
+            } catch (SQLException e) {
+                pooled.failed(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw failure(e);
+        }
+    }
+
+    @Override
+    public byte[] getBlob(String hash) throws IOException {
+        try (ConnectionPool.PooledConnection pooled = pool.acquire()) {
+            try {
+                PreparedStatement stmt = pooled.prepare("SELECT data FROM blob WHERE hash = ?");
+                stmt.setString(1, hash);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getBytes(1) : null;
+                }
+            } catch (SQLException e) {
+                pooled.failed(e);
+                throw e;
+            }
+        } catch (SQLException e) {
+            throw failure(e);
+        }
+    }
+
+    // Pooled connections are closed with the process.
+    @Override
+    public void close() {
+    }
+
+    private static IOException failure(SQLException e) {
+        return new IOException(e.getMessage(), e);
+    }
+}
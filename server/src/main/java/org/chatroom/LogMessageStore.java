@@ -0,0 +1,613 @@
+package org.chatroom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32C;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+// Embedded storage without a database. Every room has a directory of log segments that are
+// only ever appended to, named by the SHA-256 of the room name since names are arbitrary
+// client input. A segment is named after the first seq it holds and is closed once it
+// reaches SEGMENT_BYTES. Records are
+//
+//   length:i32  crc:i32  seq:i64  message:bytes
+//
+// where message is the MessageCodec encoding, the bytes that go out on the wire, so history
+// is served from memory-mapped segments without decoding. crc is the CRC32C of seq and message.
+//
+// Each segment keeps a sparse in-memory index, the seq and position of one record every
+// INDEX_BYTES, rebuilt from the record headers when the room is first used. A range read
+// starts from the closest entry and scans forward. A write-behind batch is written with one
+// gathering write per segment and made durable with one fsync per file touched before any
+// of it is visible to readers. A record cut off by a crash mid-write is truncated when the
+// room is opened.
+//
+// Search uses a SearchIndex per room, built from the segments on the room's first search and
+// then updated with every append.
+//
+// Blobs are files in blobs/ named by their hash, written to a temporary file and renamed.
+//
+// A log belongs to a single server, so there are no claims to fence and epochs are ignored.
+public class LogMessageStore implements MessageStore {
+    public static String DIR = System.getenv().getOrDefault("STORE_DIR", "data");
+    public static int SEGMENT_BYTES = Integer.parseInt(System.getenv().getOrDefault("STORE_SEGMENT_BYTES", String.valueOf(64 * 1024 * 1024)));
+    // Set to "off" to leave writing back to the OS. Survives a crash of the process, but not
+    // of the machine.
+    public static boolean FSYNC = !"off".equals(System.getenv("STORE_FSYNC"));
+    private static final int HEADER_BYTES = 16;
+    private static final int INDEX_BYTES = 4096;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path roomsDir;
+    private final Path blobsDir;
+    private final Map<String, RoomLog> rooms = new ConcurrentHashMap<>();
+    private final CRC32C crc = new CRC32C();
+
+    public LogMessageStore(Path dir) throws IOException {
+        roomsDir = Files.createDirectories(dir.resolve("rooms"));
+        blobsDir = Files.createDirectories(dir.resolve("blobs"));
+        // Left over from uploads interrupted by a crash.
+        try (DirectoryStream<Path> temps = Files.newDirectoryStream(blobsDir, "*" + TEMP_SUFFIX)) {
+            for (Path temp : temps) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    @Override
+    public void append(List<Message> messages, Map<String, Long> epochs) throws IOException {
+        Map<RoomLog, List<Message>> byRoom = new LinkedHashMap<>();
+        for (Message message : messages) {
+            byRoom.computeIfAbsent(roomLog(message.room), log -> new ArrayList<>()).add(message);
+        }
+        List<Segment> touched = new ArrayList<>();
+        try {
+            for (Map.Entry<RoomLog, List<Message>> entry : byRoom.entrySet()) {
+                entry.getKey().stage(entry.getValue(), touched, crc);
+            }
+            for (Segment segment : touched) {
+                segment.write();
+            }
+            // Group commit: one fsync per file for the whole batch.
+            if (FSYNC) {
+                for (Segment segment : touched) {
+                    segment.force();
+                }
+            }
+        } catch (IOException e) {
+            for (Segment segment : touched) {
+                segment.rollback();
+            }
+            for (RoomLog log : byRoom.keySet()) {
+                log.stagedTexts.clear();
+            }
+            throw e;
+        }
+        for (Segment segment : touched) {
+            segment.commit();
+        }
+        for (RoomLog log : byRoom.keySet()) {
+            log.indexStaged();
+        }
+    }
+
+    @Override
+    public long claim(String room) {
+        return 1;
+    }
+
+    @Override
+    public long maxSeq(String room) throws IOException {
+        return roomLog(room).lastSeq();
+    }
+
+    @Override
+    public void stream(String room, long afterSeq, long beforeSeq, ChatServer.HistorySink sink) throws IOException {
+        RoomLog log = roomLog(room);
+        List<Frame> chunk = new ArrayList<>(ChatServer.HISTORY_CHUNK_SIZE);
+        long chunkBytes = 0;
+        List<Segment> segments = log.segments;
+        scan:
+        for (int i = log.find(afterSeq); i < segments.size(); i++) {
+            ByteBuffer records = segments.get(i).read(afterSeq);
+            int position = records.position();
+            while (position < records.limit()) {
+                int length = records.getInt(position);
+                long seq = records.getLong(position + 8);
+                if (seq >= beforeSeq) {
+                    break scan;
+                }
+                if (seq > afterSeq) {
+                    Frame frame = Frame.of(records.slice(position + HEADER_BYTES, length));
+                    chunk.add(frame);
+                    chunkBytes += frame.size();
+                    if (chunk.size() >= ChatServer.HISTORY_CHUNK_SIZE || chunkBytes >= ChatServer.HISTORY_CHUNK_BYTES) {
+                        sink.acceptEncoded(chunk);
+                        chunk = new ArrayList<>(ChatServer.HISTORY_CHUNK_SIZE);
+                        chunkBytes = 0;
+                    }
+                }
+                position += HEADER_BYTES + length;
+            }
+        }
+        if (!chunk.isEmpty()) {
+            sink.acceptEncoded(chunk);
+        }
+    }
+
+    @Override
+    public List<Message> search(String room, String query, int offset, int limit) throws IOException {
+        RoomLog log = roomLog(room);
+        SearchIndex index = log.searchIndex();
+        long[] locations;
+        synchronized (log.indexLock) {
+            locations = index.search(query, offset, limit);
+        }
+        List<Message> messages = new ArrayList<>(locations.length);
+        for (long location : locations) {
+            messages.add(log.segments.get((int) (location >>> 32)).message((int) location));
+        }
+        return messages;
+    }
+
+    @Override
+    public void putBlob(String hash, byte[] data) throws IOException {
+        Path path = blobPath(hash);
+        if (path == null || Files.exists(path)) {
+            return;
+        }
+        Path temp = Files.createTempFile(blobsDir, hash, TEMP_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(temp, WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (FSYNC) {
+                    channel.force(true);
+                }
+            }
+            // Content addressed, so a concurrent upload of the same image writes the same bytes.
+            Files.move(temp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    public boolean hasBlob(String hash) {
+        Path path = blobPath(hash);
+        return path != null && Files.exists(path);
+    }
+
+    @Override
+    public byte[] getBlob(String hash) throws IOException {
+        Path path = blobPath(hash);
+        if (path == null) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(path);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (RoomLog log : rooms.values()) {
+            log.close();
+        }
+    }
+
+    private RoomLog roomLog(String room) throws IOException {
+        RoomLog log = rooms.get(room);
+        if (log != null) {
+            return log;
+        }
+        synchronized (rooms) {
+            log = rooms.get(room);
+            if (log == null) {
+                log = RoomLog.open(roomsDir.resolve(ImageRef.hashOf(room.getBytes(UTF_8))));
+                rooms.put(room, log);
+            }
+            return log;
+        }
+    }
+
+    // Null unless hash is a hex SHA-256, since it comes from clients and becomes a file name.
+    private Path blobPath(String hash) {
+        if (hash.length() != 64) {
+            return null;
+        }
+        for (int i = 0; i < hash.length(); i++) {
+            char c = hash.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return null;
+            }
+        }
+        return blobsDir.resolve(hash);
+    }
+
+    // A text message of the current append and its location: segment index and position.
+    private record StagedText(long seq, long location, String text) {
+    }
+
+    private static final class RoomLog {
+        private final Path dir;
+        // In seq order, the last one is open for writing.
+        final List<Segment> segments = new CopyOnWriteArrayList<>();
+        // Guards index, which is null until the first search.
+        final Object indexLock = new Object();
+        private SearchIndex index;
+        final List<StagedText> stagedTexts = new ArrayList<>();
+
+        RoomLog(Path dir) {
+            this.dir = dir;
+        }
+
+        static RoomLog open(Path dir) throws IOException {
+            RoomLog log = new RoomLog(dir);
+            if (!Files.isDirectory(dir)) {
+                return log;
+            }
+            List<Path> paths = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+                for (Path path : files) {
+                    paths.add(path);
+                }
+            }
+            // Zero-padded names sort by seq.
+            paths.sort(null);
+            for (int i = 0; i < paths.size(); i++) {
+                log.segments.add(Segment.open(paths.get(i), i == paths.size() - 1));
+            }
+            return log;
+        }
+
+        long lastSeq() {
+            for (int i = segments.size() - 1; i >= 0; i--) {
+                long seq = segments.get(i).lastSeq;
+                if (seq > 0) {
+                    return seq;
+                }
+            }
+            return 0;
+        }
+
+        // Index of the segment holding the first record after seq: the last one starting at
+        // or before it.
+        int find(long seq) {
+            int low = 0;
+            int high = segments.size() - 1;
+            int found = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (segments.get(mid).baseSeq <= seq) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        // Adds messages to the open segment, starting new segments as they fill up. Every
+        // segment that receives records is added to touched once.
+        void stage(List<Message> messages, List<Segment> touched, CRC32C crc) throws IOException {
+            Segment segment = segments.isEmpty() ? roll(messages.get(0).seq) : segments.get(segments.size() - 1);
+            for (Message message : messages) {
+                byte[] record = MessageCodec.encode(message, HEADER_BYTES);
+                if (!segment.fits(record.length)) {
+                    segment = roll(message.seq);
+                }
+                ByteBuffer header = ByteBuffer.wrap(record);
+                header.putInt(0, record.length - HEADER_BYTES);
+                header.putLong(8, message.seq);
+                crc.reset();
+                crc.update(record, 8, record.length - 8);
+                header.putInt(4, (int) crc.getValue());
+                if (message.content instanceof String text) {
+                    stagedTexts.add(new StagedText(message.seq, (long) (segments.size() - 1) << 32 | segment.stagedLength, text));
+                }
+                if (segment.stage(message.seq, record)) {
+                    touched.add(segment);
+                }
+            }
+        }
+
+        // Called by the write-behind thread once the staged messages are committed.
+        void indexStaged() {
+            synchronized (indexLock) {
+                if (index != null) {
+                    for (StagedText staged : stagedTexts) {
+                        index.add(staged.seq, staged.location, staged.text);
+                    }
+                }
+            }
+            stagedTexts.clear();
+        }
+
+        // Builds the index from the segments without holding indexLock, so appends are not
+        // held up, then adds what was committed meanwhile and publishes it.
+        synchronized SearchIndex searchIndex() throws IOException {
+            synchronized (indexLock) {
+                if (index != null) {
+                    return index;
+                }
+            }
+            SearchIndex built = new SearchIndex();
+            indexFrom(built, 0);
+            synchronized (indexLock) {
+                indexFrom(built, built.lastSeq());
+                index = built;
+            }
+            return built;
+        }
+
+        // Adds the committed text messages after seq to index.
+        private void indexFrom(SearchIndex index, long afterSeq) throws IOException {
+            for (int i = find(afterSeq); i < segments.size(); i++) {
+                ByteBuffer records = segments.get(i).read(afterSeq);
+                int position = records.position();
+                while (position < records.limit()) {
+                    int length = records.getInt(position);
+                    long seq = records.getLong(position + 8);
+                    // The type byte follows the codec version.
+                    if (seq > afterSeq && records.get(position + HEADER_BYTES + 1) == MessageCodec.TEXT) {
+                        byte[] data = new byte[length];
+                        records.get(position + HEADER_BYTES, data);
+                        index.add(seq, (long) i << 32 | position, (String) MessageCodec.decode(data).content);
+                    }
+                    position += HEADER_BYTES + length;
+                }
+            }
+        }
+
+        private Segment roll(long baseSeq) throws IOException {
+            if (!segments.isEmpty()) {
+                segments.get(segments.size() - 1).seal();
+            }
+            Files.createDirectories(dir);
+            Segment segment = Segment.create(dir.resolve(String.format("%020d", baseSeq) + SEGMENT_SUFFIX), baseSeq);
+            if (FSYNC) {
+                // Makes the new file itself survive a crash.
+                try (FileChannel channel = FileChannel.open(dir, READ)) {
+                    channel.force(true);
+                }
+            }
+            segments.add(segment);
+            return segment;
+        }
+
+        void close() throws IOException {
+            if (!segments.isEmpty()) {
+                segments.get(segments.size() - 1).close();
+            }
+        }
+    }
+
+    // Readers see length, lastSeq and the first indexSize index entries, all published
+    // together by commit. The rest belongs to the write-behind thread.
+    private static final class Segment {
+        private final Path path;
+        final long baseSeq;
+        private volatile int length;
+        volatile long lastSeq;
+        private long[] indexSeqs = new long[16];
+        private int[] indexPositions = new int[16];
+        private int indexSize;
+        private MappedByteBuffer mapped;
+
+        // Null once the segment is full and its records are committed.
+        private FileChannel channel;
+        private boolean sealed;
+        private final List<ByteBuffer> staged = new ArrayList<>();
+        private int stagedLength;
+        private long stagedLastSeq;
+        private int stagedIndexSize;
+        private int nextIndexPosition;
+
+        private Segment(Path path, long baseSeq) {
+            this.path = path;
+            this.baseSeq = baseSeq;
+        }
+
+        static Segment create(Path path, long baseSeq) throws IOException {
+            Segment segment = new Segment(path, baseSeq);
+            segment.channel = FileChannel.open(path, CREATE_NEW, WRITE);
+            return segment;
+        }
+
+        // Rebuilds the index from the record headers and truncates a record cut off mid-write.
+        static Segment open(Path path, boolean last) throws IOException {
+            String name = path.getFileName().toString();
+            Segment segment = new Segment(path, Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            FileChannel channel = FileChannel.open(path, READ, WRITE);
+            try {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Segment " + path + " is larger than 2 GB");
+                }
+                ByteBuffer records = size == 0 ? ByteBuffer.allocate(0) : channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                CRC32C crc = new CRC32C();
+                int position = 0;
+                while (position + HEADER_BYTES <= size) {
+                    int length = records.getInt(position);
+                    if (length < 0 || position + HEADER_BYTES + (long) length > size) {
+                        break;
+                    }
+                    crc.reset();
+                    crc.update(records.slice(position + 8, length + 8));
+                    if ((int) crc.getValue() != records.getInt(position + 4)) {
+                        break;
+                    }
+                    long seq = records.getLong(position + 8);
+                    segment.index(seq, position);
+                    segment.stagedLastSeq = seq;
+                    position += HEADER_BYTES + length;
+                }
+                if (position < size) {
+                    System.err.println("Truncating " + path + " from " + size + " to " + position + " bytes, the last record is incomplete");
+                    channel.truncate(position);
+                    channel.force(true);
+                }
+                segment.stagedLength = position;
+                segment.commit();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            if (last) {
+                segment.channel = channel;
+            } else {
+                channel.close();
+            }
+            return segment;
+        }
+
+        // Closed now if it has nothing staged, else once that is committed.
+        void seal() throws IOException {
+            sealed = true;
+            if (staged.isEmpty()) {
+                close();
+            }
+        }
+
+        boolean fits(int recordLength) {
+            return stagedLength == 0 || (long) stagedLength + recordLength <= SEGMENT_BYTES;
+        }
+
+        // Returns true for the first record staged since the last commit.
+        boolean stage(long seq, byte[] record) {
+            boolean first = staged.isEmpty();
+            index(seq, stagedLength);
+            staged.add(ByteBuffer.wrap(record));
+            stagedLength += record.length;
+            stagedLastSeq = seq;
+            return first;
+        }
+
+        private void index(long seq, int position) {
+            if (position < nextIndexPosition) {
+                return;
+            }
+            synchronized (this) {
+                if (stagedIndexSize == indexSeqs.length) {
+                    indexSeqs = Arrays.copyOf(indexSeqs, stagedIndexSize * 2);
+                    indexPositions = Arrays.copyOf(indexPositions, stagedIndexSize * 2);
+                }
+                indexSeqs[stagedIndexSize] = seq;
+                indexPositions[stagedIndexSize] = position;
+                stagedIndexSize++;
+            }
+            nextIndexPosition = position + INDEX_BYTES;
+        }
+
+        void write() throws IOException {
+            ByteBuffer[] buffers = staged.toArray(new ByteBuffer[0]);
+            channel.position(length);
+            long remaining = stagedLength - length;
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        }
+
+        void force() throws IOException {
+            channel.force(false);
+        }
+
+        synchronized void commit() throws IOException {
+            length = stagedLength;
+            lastSeq = stagedLastSeq;
+            indexSize = stagedIndexSize;
+            staged.clear();
+            if (sealed) {
+                close();
+            }
+        }
+
+        // Drops what was staged, including any of it already written.
+        void rollback() {
+            staged.clear();
+            stagedLength = length;
+            stagedLastSeq = lastSeq;
+            synchronized (this) {
+                stagedIndexSize = indexSize;
+            }
+            nextIndexPosition = indexSize == 0 ? 0 : indexPositions[indexSize - 1] + INDEX_BYTES;
+            try {
+                channel.truncate(length);
+                if (sealed) {
+                    close();
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to truncate " + path + ": " + e.getMessage());
+            }
+        }
+
+        // The committed record at position.
+        Message message(int position) throws IOException {
+            ByteBuffer records = read(Long.MIN_VALUE);
+            byte[] data = new byte[records.getInt(position)];
+            records.get(position + HEADER_BYTES, data);
+            return MessageCodec.decode(data);
+        }
+
+        // The committed records, positioned at the last indexed record at or before seq, or
+        // at the first record if there is none.
+        synchronized ByteBuffer read(long seq) throws IOException {
+            int committed = length;
+            if (committed == 0) {
+                return ByteBuffer.allocate(0);
+            }
+            if (mapped == null || mapped.capacity() < committed) {
+                // Grows with the open segment, a full one is mapped once.
+                try (FileChannel reader = FileChannel.open(path, READ)) {
+                    mapped = reader.map(FileChannel.MapMode.READ_ONLY, 0, committed);
+                }
+            }
+            int low = 0;
+            int high = indexSize - 1;
+            int position = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexSeqs[mid] <= seq) {
+                    position = indexPositions[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return mapped.slice(0, committed).position(position);
+        }
+
+        void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.chatroom;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+// Where the server keeps messages and image blobs. STORE picks the implementation: "jdbc"
+// (default) for the database at DB_URL, "log" for the embedded append-only log in STORE_DIR.
+//
+// append is only called from the write-behind thread, everything else from any thread.
+public interface MessageStore {
+    // Saves a batch of stamped messages, durable once this returns. Within a room messages
+    // arrive in seq order. epochs holds the claim each room was stamped under, for the rooms
+    // stamped in a cluster. If a room has been claimed again since, nothing is saved and a
+    // FencedException names the room.
+    void append(List<Message> messages, Map<String, Long> epochs) throws IOException;
+
+    // Makes this node the one that stamps room and returns the epoch of its claim. Appends
+    // under any earlier claim, by this node or another, are refused from then on, so maxSeq
+    // read after this covers everything that will ever be saved under them.
+    long claim(String room) throws IOException;
+
+    // Highest seq saved in room, 0 if it has no messages.
+    long maxSeq(String room) throws IOException;
+
+    // Streams every message of room with afterSeq < seq < beforeSeq to sink in seq order, in
+    // chunks of at most ChatServer.HISTORY_CHUNK_SIZE messages or HISTORY_CHUNK_BYTES.
+    void stream(String room, long afterSeq, long beforeSeq, ChatServer.HistorySink sink) throws IOException;
+
+    // Text messages of room containing every word of query, best match first, skipping the
+    // first offset matches. At most limit.
+    List<Message> search(String room, String query, int offset, int limit) throws IOException;
+
+    // Stores data under hash unless it is already there.
+    void putBlob(String hash, byte[] data) throws IOException;
+
+    boolean hasBlob(String hash) throws IOException;
+
+    // Returns null if there is no blob with this hash.
+    byte[] getBlob(String hash) throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,281 @@
+package org.chatroom;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// Server instrumentation. Counters and histograms are recorded on the message path and never
+// allocate there. Gauges are read from the live server state when metrics are scraped.
+//
+// Exposed over JMX, and as plain text on http://127.0.0.1:METRICS_PORT/metrics when the port
+// is set. Latencies are in microseconds.
+public class Metrics implements MetricsMXBean {
+    // Port of the local text endpoint, 0 disables it.
+    public static int PORT = Integer.parseInt(System.getenv().getOrDefault("METRICS_PORT", "0"));
+
+    // Messages stamped by this node.
+    public static final LongAdder ingested = new LongAdder();
+    // Messages the write-behind writer gave up saving.
+    public static final LongAdder discarded = new LongAdder();
+    // Per write-behind batch: commit latency and number of messages.
+    public static final Histogram persistLatency = new Histogram();
+    public static final Histogram persistBatchSize = new Histogram();
+    // Time to queue one message to every session of its room.
+    public static final Histogram fanOutLatency = new Histogram();
+    // Time a frame waited in a session's outbound queue before being written.
+    public static final Histogram outboundWait = new Histogram();
+    // Per client sync: duration and number of messages sent.
+    public static final Histogram historyLatency = new Histogram();
+    public static final Histogram historyMessages = new Histogram();
+    // Time to answer one search request.
+    public static final Histogram searchLatency = new Histogram();
+
+    private static final Metrics instance = new Metrics();
+
+    public static void start() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName("org.chatroom:type=Metrics"));
+        } catch (Exception e) {
+            System.err.println("Failed to register metrics MBean: " + e.getMessage());
+        }
+        if (PORT == 0) {
+            return;
+        }
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = render().getBytes(UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            System.out.println("Metrics on http://127.0.0.1:" + PORT + "/metrics");
+        } catch (IOException e) {
+            System.err.println("Failed to start metrics endpoint: " + e.getMessage());
+        }
+    }
+
+    // Prometheus text format, histograms as summaries.
+    public static String render() {
+        StringBuilder sb = new StringBuilder();
+        counter(sb, "chat_messages_ingested_total", instance.getMessagesIngested());
+        counter(sb, "chat_messages_discarded_total", instance.getMessagesDiscarded());
+        gauge(sb, "chat_ingest_queue_depth", instance.getIngestQueueDepth());
+        gauge(sb, "chat_persist_queue_depth", instance.getPersistQueueDepth());
+        gauge(sb, "chat_sessions", instance.getConnectedSessions());
+        gauge(sb, "chat_rooms", instance.getRooms());
+        gauge(sb, "chat_outbound_queued", instance.getOutboundQueued());
+        gauge(sb, "chat_outbound_max_lag_ms", instance.getMaxOutboundLagMillis());
+        counter(sb, "chat_recent_history_hits_total", instance.getRecentHistoryHits());
+        counter(sb, "chat_recent_history_misses_total", instance.getRecentHistoryMisses());
+        gauge(sb, "chat_recent_history_messages", instance.getRecentHistoryMessages());
+        gauge(sb, "chat_recent_history_bytes", instance.getRecentHistoryBytes());
+        if (ChatServer.pool() != null) {
+            gauge(sb, "chat_db_pool_active", instance.getDbPoolActive());
+            gauge(sb, "chat_db_pool_idle", instance.getDbPoolIdle());
+            gauge(sb, "chat_db_pool_avg_wait_us", instance.getDbPoolAverageWaitMicros());
+            gauge(sb, "chat_db_pool_max_wait_us", instance.getDbPoolMaxWaitMicros());
+            counter(sb, "chat_db_pool_replaced_total", instance.getDbPoolReplaced());
+        }
+        summary(sb, "chat_persist_batch_latency_us", persistLatency);
+        summary(sb, "chat_persist_batch_size", persistBatchSize);
+        summary(sb, "chat_fanout_latency_us", fanOutLatency);
+        summary(sb, "chat_outbound_wait_us", outboundWait);
+        summary(sb, "chat_history_sync_latency_us", historyLatency);
+        summary(sb, "chat_history_sync_messages", historyMessages);
+        summary(sb, "chat_search_latency_us", searchLatency);
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, long value) {
+        sb.append("# TYPE ").append(name).append(" counter\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, long value) {
+        sb.append("# TYPE ").append(name).append(" gauge\n").append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, Histogram histogram) {
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        sb.append(name).append("{quantile=\"0.5\"} ").append(snapshot.getP50()).append('\n');
+        sb.append(name).append("{quantile=\"0.9\"} ").append(snapshot.getP90()).append('\n');
+        sb.append(name).append("{quantile=\"0.99\"} ").append(snapshot.getP99()).append('\n');
+        sb.append(name).append("{quantile=\"1\"} ").append(snapshot.getMax()).append('\n');
+        sb.append(name).append("_sum ").append(histogram.sum()).append('\n');
+        sb.append(name).append("_count ").append(snapshot.getCount()).append('\n');
+    }
+
+    @Override
+    public long getMessagesIngested() {
+        return ingested.sum();
+    }
+
+    @Override
+    public long getMessagesDiscarded() {
+        return discarded.sum();
+    }
+
+    @Override
+    public int getIngestQueueDepth() {
+        return ChatServer.ingestQueueDepth();
+    }
+
+    @Override
+    public int getPersistQueueDepth() {
+        return ChatServer.persistQueueDepth();
+    }
+
+    @Override
+    public int getConnectedSessions() {
+        int sessions = 0;
+        for (Room room : ChatServer.rooms()) {
+            sessions += room.sessionsByName().size();
+        }
+        return sessions;
+    }
+
+    @Override
+    public int getRooms() {
+        return ChatServer.rooms().size();
+    }
+
+    @Override
+    public int getOutboundQueued() {
+        int queued = 0;
+        for (Session session : ChatServer.sessions()) {
+            queued += session.queued();
+        }
+        return queued;
+    }
+
+    @Override
+    public long getMaxOutboundLagMillis() {
+        long lag = 0;
+        for (Session session : ChatServer.sessions()) {
+            lag = Math.max(lag, session.lagMillis());
+        }
+        return lag;
+    }
+
+    // Syncs served entirely from the recent history window, summed over rooms.
+    @Override
+    public long getRecentHistoryHits() {
+        long hits = 0;
+        for (Room room : ChatServer.rooms()) {
+            hits += room.recentHistory().hits();
+        }
+        return hits;
+    }
+
+    @Override
+    public long getRecentHistoryMisses() {
+        long misses = 0;
+        for (Room room : ChatServer.rooms()) {
+            misses += room.recentHistory().misses();
+        }
+        return misses;
+    }
+
+    @Override
+    public double getRecentHistoryHitRatio() {
+        long hits = getRecentHistoryHits();
+        long total = hits + getRecentHistoryMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getRecentHistoryMessages() {
+        long messages = 0;
+        for (Room room : ChatServer.rooms()) {
+            messages += room.recentHistory().size();
+        }
+        return messages;
+    }
+
+    @Override
+    public long getRecentHistoryBytes() {
+        long bytes = 0;
+        for (Room room : ChatServer.rooms()) {
+            bytes += room.recentHistory().bytes();
+        }
+        return bytes;
+    }
+
+    // The database connection pool, all 0 with the log store.
+    @Override
+    public int getDbPoolActive() {
+        ConnectionPool pool = ChatServer.pool();
+        return pool == null ? 0 : pool.active();
+    }
+
+    @Override
+    public int getDbPoolIdle() {
+        ConnectionPool pool = ChatServer.pool();
+        return pool == null ? 0 : pool.idle();
+    }
+
+    @Override
+    public long getDbPoolAverageWaitMicros() {
+        ConnectionPool pool = ChatServer.pool();
+        return pool == null ? 0 : pool.averageWaitMicros();
+    }
+
+    @Override
+    public long getDbPoolMaxWaitMicros() {
+        ConnectionPool pool = ChatServer.pool();
+        return pool == null ? 0 : pool.maxWaitMicros();
+    }
+
+    @Override
+    public long getDbPoolReplaced() {
+        ConnectionPool pool = ChatServer.pool();
+        return pool == null ? 0 : pool.replaced();
+    }
+
+    @Override
+    public Histogram.Snapshot getPersistBatchLatency() {
+        return persistLatency.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getPersistBatchSize() {
+        return persistBatchSize.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getFanOutLatency() {
+        return fanOutLatency.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getOutboundWait() {
+        return outboundWait.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getHistorySyncLatency() {
+        return historyLatency.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getHistorySyncMessages() {
+        return historyMessages.snapshot();
+    }
+
+    @Override
+    public Histogram.Snapshot getSearchLatency() {
+        return searchLatency.snapshot();
+    }
+}
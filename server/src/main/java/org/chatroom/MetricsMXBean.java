@@ -0,0 +1,54 @@
+package org.chatroom;
+
+// JMX view of Metrics, registered as org.chatroom:type=Metrics. Latencies are in microseconds.
+public interface MetricsMXBean {
+    long getMessagesIngested();
+
+    long getMessagesDiscarded();
+
+    int getIngestQueueDepth();
+
+    int getPersistQueueDepth();
+
+    int getConnectedSessions();
+
+    int getRooms();
+
+    int getOutboundQueued();
+
+    long getMaxOutboundLagMillis();
+
+    long getRecentHistoryHits();
+
+    long getRecentHistoryMisses();
+
+    double getRecentHistoryHitRatio();
+
+    long getRecentHistoryMessages();
+
+    long getRecentHistoryBytes();
+
+    int getDbPoolActive();
+
+    int getDbPoolIdle();
+
+    long getDbPoolAverageWaitMicros();
+
+    long getDbPoolMaxWaitMicros();
+
+    long getDbPoolReplaced();
+
+    Histogram.Snapshot getPersistBatchLatency();
+
+    Histogram.Snapshot getPersistBatchSize();
+
+    Histogram.Snapshot getFanOutLatency();
+
+    Histogram.Snapshot getOutboundWait();
+
+    Histogram.Snapshot getHistorySyncLatency();
+
+    Histogram.Snapshot getHistorySyncMessages();
+
+    Histogram.Snapshot getSearchLatency();
+}
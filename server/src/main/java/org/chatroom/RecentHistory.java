@@ -0,0 +1,103 @@
+package org.chatroom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// The most recent broadcast frames, keyed by seq and kept in their encoded form, so that a
+// reconnecting client that only missed the last few minutes is served without a query.
+// Bounded by message count, age and total frame bytes.
+//
+// Frames are added when they are fanned out, which by default is before they are saved. Only
+// saved frames are evicted, so everything below the window is in the store and a client that
+// syncs the older part of its range from there finds no seq missing. While the store lags
+// the window grows past its bounds.
+public class RecentHistory {
+    public static int MAX_MESSAGES = Integer.parseInt(System.getenv().getOrDefault("RECENT_HISTORY_SIZE", "10000"));
+    public static long MAX_AGE_MS = TimeUnit.MINUTES.toMillis(Long.parseLong(System.getenv().getOrDefault("RECENT_HISTORY_MINUTES", "60")));
+    public static long MAX_BYTES = Long.parseLong(System.getenv().getOrDefault("RECENT_HISTORY_BYTES", String.valueOf(64 * 1024 * 1024)));
+
+    private record Entry(Frame frame, long addedAt) {
+    }
+
+    private final ConcurrentSkipListMap<Long, Entry> entries = new ConcurrentSkipListMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // Every seq from floor on is cached.
+    private volatile long floor;
+    // Highest seq known to be saved.
+    private final AtomicLong committed;
+
+    public RecentHistory(long lastSeq) {
+        floor = lastSeq + 1;
+        committed = new AtomicLong(lastSeq);
+    }
+
+    // seq has been saved, by this node or by the owner of the room in a cluster.
+    public void committed(long seq) {
+        committed.accumulateAndGet(seq, Math::max);
+    }
+
+    // Called by a single thread, in seq order. A gap, e.g. when a room has just moved to
+    // another node of a cluster, restarts the window at seq.
+    public void add(long seq, Frame frame) {
+        long now = System.currentTimeMillis();
+        Map.Entry<Long, Entry> newest = entries.lastEntry();
+        if (newest == null ? seq != floor : seq != newest.getKey() + 1) {
+            entries.clear();
+            bytes.set(0);
+            floor = seq;
+        }
+        entries.put(seq, new Entry(frame, now));
+        bytes.addAndGet(frame.size());
+        Map.Entry<Long, Entry> oldest;
+        while ((oldest = entries.firstEntry()) != null && oldest.getKey() <= committed.get()
+                && (entries.size() > MAX_MESSAGES || bytes.get() > MAX_BYTES || now - oldest.getValue().addedAt > MAX_AGE_MS)) {
+            floor = oldest.getKey() + 1;
+            entries.remove(oldest.getKey());
+            bytes.addAndGet(-oldest.getValue().frame.size());
+        }
+    }
+
+    public long floor() {
+        return floor;
+    }
+
+    // Every cached frame after seq, or null if the window does not reach back that far.
+    public List<Frame> after(long seq) {
+        if (seq + 1 < floor) {
+            return null;
+        }
+        List<Frame> frames = new ArrayList<>();
+        for (Entry entry : entries.tailMap(seq, false).values()) {
+            frames.add(entry.frame);
+        }
+        // Frames may have been evicted while we were copying.
+        return seq + 1 < floor ? null : frames;
+    }
+
+    public void record(boolean hit) {
+        (hit ? hits : misses).increment();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long bytes() {
+        return bytes.get();
+    }
+}
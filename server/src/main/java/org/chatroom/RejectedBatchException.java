@@ -0,0 +1,15 @@
+package org.chatroom;
+
+import java.io.IOException;
+import java.io.Serial;
+
+// The store refused a batch because of what is in it, e.g. a value the database does not
+// accept. Saving the same messages again fails the same way.
+public class RejectedBatchException extends IOException {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    public RejectedBatchException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
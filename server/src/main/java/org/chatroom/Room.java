@@ -0,0 +1,150 @@
+package org.chatroom;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A chat room: its subscribed sessions, its own sequence numbers and its recent history
+// window. Fan-out only visits the sessions of the message's room.
+public class Room {
+    private static final int RECENT_IDS = 4096;
+
+    private record SenderId(String username, long id) {
+    }
+
+    private final String name;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong sequence;
+    // Epoch of this node's claim on the room in a cluster, 0 while it holds none.
+    private final AtomicLong epoch = new AtomicLong();
+    private final RecentHistory recentHistory;
+    // Client ids of the messages stamped here most recently, to drop one that is sent again.
+    // Guarded by itself.
+    private final Map<SenderId, Boolean> recentIds = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SenderId, Boolean> eldest) {
+            return size() > RECENT_IDS;
+        }
+    };
+    // Of clients still streaming history, guarded by the room's monitor like fan-out.
+    private final List<Backlog> backlogs = new ArrayList<>();
+
+    public Room(String name, long lastSeq) {
+        this.name = name;
+        this.sequence = new AtomicLong(lastSeq);
+        this.recentHistory = new RecentHistory(lastSeq);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public long nextSeq() {
+        return sequence.incrementAndGet();
+    }
+
+    // Called with seqs stamped by another node.
+    public void observe(long seq) {
+        sequence.accumulateAndGet(seq, Math::max);
+    }
+
+    public long epoch() {
+        return epoch.get();
+    }
+
+    // Stamping continues after lastSeq, read from the store once the claim was made.
+    public void claimed(long epoch, long lastSeq) {
+        sequence.set(lastSeq);
+        this.epoch.set(epoch);
+    }
+
+    // Gives up the claim of this epoch, if it is still the current one. The next message
+    // stamped here claims the room again.
+    public void release(long epoch) {
+        this.epoch.compareAndSet(epoch, 0);
+    }
+
+    // Records the client id of a message about to be stamped. Returns false if a message with
+    // the same id from the same user was stamped here already. Only the node that owns the room
+    // has its ids, a message sent again just as the room moves can still be stamped twice.
+    public boolean firstSent(String username, long id) {
+        synchronized (recentIds) {
+            return recentIds.putIfAbsent(new SenderId(username, id), Boolean.TRUE) == null;
+        }
+    }
+
+    // For a message that was recorded but never stamped for good, see ChatServer.fenced.
+    public void forget(String username, long id) {
+        synchronized (recentIds) {
+            recentIds.remove(new SenderId(username, id));
+        }
+    }
+
+    public long lastSeq() {
+        return sequence.get();
+    }
+
+    public RecentHistory recentHistory() {
+        return recentHistory;
+    }
+
+    public Map<String, Session> sessionsByName() {
+        return sessions;
+    }
+
+    public Collection<Session> sessions() {
+        return sessions.values();
+    }
+
+    // Starts keeping every frame fanned out in this room until the backlog is closed.
+    public synchronized Backlog openBacklog() {
+        Backlog backlog = new Backlog();
+        backlogs.add(backlog);
+        return backlog;
+    }
+
+    public synchronized void closeBacklog(Backlog backlog) {
+        backlogs.remove(backlog);
+    }
+
+    // Called from fan-out, with the room's monitor held.
+    void buffer(long seq, Frame frame) {
+        for (Backlog backlog : backlogs) {
+            backlog.add(seq, frame);
+        }
+    }
+
+    // Live frames a joining client would miss between the history it is sent and its
+    // registration. Bounded like a session queue, past that it is marked overflowed.
+    public static final class Backlog {
+        private final List<Long> seqs = new ArrayList<>();
+        private final List<Frame> frames = new ArrayList<>();
+        private boolean overflowed;
+
+        private void add(long seq, Frame frame) {
+            if (frames.size() >= Session.QUEUE_CAPACITY) {
+                overflowed = true;
+                return;
+            }
+            seqs.add(seq);
+            frames.add(frame);
+        }
+
+        public boolean overflowed() {
+            return overflowed;
+        }
+
+        // Queues the frames after seq, the last one the client got with history.
+        public void offerAfter(long seq, Session session) {
+            for (int i = 0; i < frames.size(); i++) {
+                if (seqs.get(i) > seq) {
+                    session.offer(seqs.get(i), frames.get(i));
+                }
+            }
+        }
+    }
+}
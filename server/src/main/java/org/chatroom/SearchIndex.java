@@ -0,0 +1,175 @@
+package org.chatroom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+// In-memory inverted index of the text messages of one room. Words are runs of letters and
+// digits, lower-cased. Messages are added in seq order, so every posting list is sorted by
+// document and a query intersects them in one pass. Matches are ranked by BM25, newer first
+// among equal scores.
+//
+// Each document keeps an opaque location the caller reads the message back from.
+// Not thread-safe, LogMessageStore locks around it.
+final class SearchIndex {
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    // Longer runs are not words anyone searches for, e.g. links or pasted data.
+    private static final int MAX_WORD_LENGTH = 64;
+
+    private static final class Postings {
+        int[] docs = new int[4];
+        int[] counts = new int[4];
+        int size;
+
+        void add(int doc, int count) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            docs[size] = doc;
+            counts[size] = count;
+            size++;
+        }
+    }
+
+    private final Map<String, Postings> postings = new HashMap<>();
+    private long[] locations = new long[64];
+    private int[] lengths = new int[64];
+    private int size;
+    private long totalLength;
+    private long lastSeq;
+
+    long lastSeq() {
+        return lastSeq;
+    }
+
+    // Ignores messages at or below the last seq added, so a message is indexed once.
+    void add(long seq, long location, String text) {
+        if (seq <= lastSeq) {
+            return;
+        }
+        lastSeq = seq;
+        List<String> words = words(text);
+        if (words.isEmpty()) {
+            return;
+        }
+        if (size == locations.length) {
+            locations = Arrays.copyOf(locations, size * 2);
+            lengths = Arrays.copyOf(lengths, size * 2);
+        }
+        int doc = size++;
+        locations[doc] = location;
+        lengths[doc] = words.size();
+        totalLength += words.size();
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        for (String word : words) {
+            counts.merge(word, 1, Integer::sum);
+        }
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            postings.computeIfAbsent(entry.getKey(), word -> new Postings()).add(doc, entry.getValue());
+        }
+    }
+
+    // Locations of the documents containing every word of query, ranked, skipping the first
+    // offset. At most limit.
+    long[] search(String query, int offset, int limit) {
+        List<String> words = words(query).stream().distinct().toList();
+        if (words.isEmpty() || limit <= 0) {
+            return new long[0];
+        }
+        Postings[] lists = new Postings[words.size()];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = postings.get(words.get(i));
+            if (lists[i] == null) {
+                return new long[0];
+            }
+        }
+        // Walk the rarest word's documents and look the others up by merging forward.
+        Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+        double[] idf = new double[lists.length];
+        for (int i = 0; i < lists.length; i++) {
+            idf[i] = Math.log(1 + (size - lists[i].size + 0.5) / (lists[i].size + 0.5));
+        }
+        double averageLength = (double) totalLength / size;
+        int[] cursors = new int[lists.length];
+        int[] matches = new int[lists[0].size];
+        double[] scores = new double[lists[0].size];
+        int matched = 0;
+        candidates:
+        for (int c = 0; c < lists[0].size; c++) {
+            int doc = lists[0].docs[c];
+            double norm = K1 * (1 - B + B * lengths[doc] / averageLength);
+            double score = idf[0] * tf(lists[0].counts[c], norm);
+            for (int i = 1; i < lists.length; i++) {
+                Postings list = lists[i];
+                int cursor = cursors[i];
+                while (cursor < list.size && list.docs[cursor] < doc) {
+                    cursor++;
+                }
+                cursors[i] = cursor;
+                if (cursor == list.size) {
+                    break candidates;
+                }
+                if (list.docs[cursor] != doc) {
+                    continue candidates;
+                }
+                score += idf[i] * tf(list.counts[cursor], norm);
+            }
+            matches[matched] = doc;
+            scores[matched] = score;
+            matched++;
+        }
+        // Only the best offset + limit are kept, in a heap with the weakest on top.
+        int keep = (int) Math.min(matched, (long) offset + limit);
+        Comparator<Integer> rank = (a, b) -> scores[a] != scores[b] ? Double.compare(scores[a], scores[b]) : Integer.compare(matches[a], matches[b]);
+        PriorityQueue<Integer> best = new PriorityQueue<>(Math.max(1, keep), rank);
+        for (int i = 0; i < matched && keep > 0; i++) {
+            if (best.size() < keep) {
+                best.add(i);
+            } else if (rank.compare(i, best.peek()) > 0) {
+                best.poll();
+                best.add(i);
+            }
+        }
+        long[] page = new long[Math.max(0, keep - offset)];
+        for (int i = keep - 1; i >= 0; i--) {
+            int match = best.poll();
+            if (i >= offset) {
+                page[i - offset] = locations[matches[match]];
+            }
+        }
+        return page;
+    }
+
+    private static double tf(int count, double norm) {
+        return count * (K1 + 1) / (count + norm);
+    }
+
+    static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); ) {
+            int c = i < lower.length() ? lower.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (start < 0) {
+                    start = i;
+                }
+            } else if (start >= 0) {
+                if (i - start <= MAX_WORD_LENGTH) {
+                    words.add(lower.substring(start, i));
+                }
+                start = -1;
+            }
+            i += Character.charCount(c);
+        }
+        return words;
+    }
+}
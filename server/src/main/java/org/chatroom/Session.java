@@ -0,0 +1,253 @@
+package org.chatroom;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A connected client with its own bounded outbound queue. The broadcaster only enqueues,
+// a per-session writer thread drains the queue to the socket, so a slow reader can only
+// fall behind itself.
+//
+// Dropping frames leaves a gap the client cannot see, so after a drop the next batch starts
+// with a RESYNC frame and the client reconnects to sync the gap as history, see Protocol.
+public class Session {
+    public static int QUEUE_CAPACITY = Integer.parseInt(System.getenv().getOrDefault("OUTBOUND_QUEUE_CAPACITY", "1024"));
+    public static OverflowPolicy OVERFLOW_POLICY = OverflowPolicy.valueOf(System.getenv().getOrDefault("OUTBOUND_OVERFLOW", "DROP_OLDEST"));
+    private static final int MAX_GATHER = 64;
+
+    public enum OverflowPolicy {
+        // Discard the oldest pending frame to make room for the new one.
+        DROP_OLDEST,
+        // Close the connection, the client resyncs history when it reconnects.
+        DISCONNECT,
+        // Discard the whole backlog and continue from the newest frame.
+        COALESCE
+    }
+
+    // seq is 0 for frames other than messages.
+    private record Pending(long seq, Frame frame, long enqueuedAt) {
+    }
+
+    private final String username;
+    private final Room room;
+    // Set when the client negotiated compression.
+    private final boolean compress;
+    private final TrafficStats traffic;
+    private final SocketChannel channel;
+    private final DataOutputStream out;
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private boolean closed;
+    private long sent;
+    private long dropped;
+    // Set by a drop until the RESYNC is taken, with the lowest message seq dropped since.
+    private boolean resync;
+    private long resyncSeq;
+
+    public Session(String username, Room room, SocketChannel channel, DataOutputStream out, boolean compress, TrafficStats traffic) {
+        this(username, room, channel, out, compress, traffic, QUEUE_CAPACITY, OVERFLOW_POLICY);
+    }
+
+    public Session(String username, Room room, SocketChannel channel, DataOutputStream out, boolean compress, TrafficStats traffic,
+                   int capacity, OverflowPolicy policy) {
+        this.username = username;
+        this.room = room;
+        this.compress = compress;
+        this.traffic = traffic;
+        this.channel = channel;
+        this.out = out;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    public String username() {
+        return username;
+    }
+
+    public Room room() {
+        return room;
+    }
+
+    public TrafficStats traffic() {
+        return traffic;
+    }
+
+    public DataOutputStream out() {
+        return out;
+    }
+
+    public void start() {
+        Thread.ofVirtual().name("writer-" + username).start(this::writeLoop);
+    }
+
+    public boolean offer(Frame frame) {
+        return offer(0, frame);
+    }
+
+    // Never blocks. Returns false if the frame was not queued because the session is closed
+    // or the overflow policy disconnected it. seq is the seq of a message frame, else 0.
+    public boolean offer(long seq, Frame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            if (queue.size() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST -> drop(queue.pollFirst());
+                    case COALESCE -> {
+                        for (Pending pending : queue) {
+                            drop(pending);
+                        }
+                        queue.clear();
+                    }
+                    case DISCONNECT -> {
+                        System.err.println("Disconnecting slow client " + username + ", lag " + lagMillis() + "ms");
+                        close();
+                        return false;
+                    }
+                }
+            }
+            queue.addLast(new Pending(seq, frame, System.nanoTime()));
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drop(Pending pending) {
+        dropped++;
+        resync = true;
+        if (pending.seq != 0 && (resyncSeq == 0 || pending.seq < resyncSeq)) {
+            resyncSeq = pending.seq;
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.clear();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close client: " + e.getMessage());
+        }
+    }
+
+    public int queued() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Age of the oldest frame still waiting to be written, 0 when the client is caught up.
+    public long lagMillis() {
+        lock.lock();
+        try {
+            Pending oldest = queue.peekFirst();
+            return oldest == null ? 0 : (System.nanoTime() - oldest.enqueuedAt) / 1_000_000;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long sent() {
+        lock.lock();
+        try {
+            return sent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves up to MAX_GATHER pending frames into frames, returns the count or -1 once closed.
+    private int takeBatch(Frame[] frames) throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            if (closed) {
+                return -1;
+            }
+            int count = 0;
+            if (resync) {
+                // Ahead of the frames that were queued after the gap.
+                frames[count++] = Frame.of(Protocol.resync(resyncSeq));
+                resync = false;
+                resyncSeq = 0;
+            }
+            long now = System.nanoTime();
+            while (count < frames.length && !queue.isEmpty()) {
+                Pending pending = queue.pollFirst();
+                Metrics.outboundWait.record((now - pending.enqueuedAt) / 1000);
+                frames[count++] = pending.frame;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        Frame[] frames = new Frame[MAX_GATHER];
+        ByteBuffer[] buffers = new ByteBuffer[MAX_GATHER];
+        try {
+            int count;
+            while ((count = takeBatch(frames)) >= 0) {
+                // Compressing happens here rather than under the lock.
+                for (int i = 0; i < count; i++) {
+                    buffers[i] = compress ? frames[i].compressedBuffer(traffic) : frames[i].buffer();
+                    traffic.rawOut.add(frames[i].size());
+                    traffic.wireOut.add(buffers[i].remaining());
+                }
+                // One gathering write for the whole batch instead of a syscall per frame.
+                while (buffers[count - 1].hasRemaining()) {
+                    channel.write(buffers, 0, count);
+                }
+                Arrays.fill(frames, 0, count, null);
+                Arrays.fill(buffers, 0, count, null);
+                lock.lock();
+                try {
+                    sent += count;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to write to client " + username + ": " + e.getMessage());
+            close();
+        } catch (InterruptedException e) {
+            close();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package org.chatroom;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Persists messages off the broadcast path. Messages are queued and appended to the store in
+// batches, each one durable as a whole, once BATCH_SIZE messages are pending or the first
+// pending message has waited LINGER_MS.
+//
+// A batch that fails to save is retried with backoff, up to RETRIES attempts, and nothing
+// behind it is written meanwhile. If it still fails, or the store refuses it for what is in it
+// (RejectedBatchException), its messages are saved one at a time with the same retries and
+// those that fail are logged and discarded, so one bad message cannot stall every room. What
+// is saved is every seq up to some point but the discarded ones. A restarted room never hands
+// out a seq that was already broadcast, unless the last messages of the room were discarded.
+//
+// In a cluster every message carries the epoch of the room claim it was stamped under. The
+// messages of a claim that has been superseded are not saved but handed to the FenceHandler.
+public class WriteBehindWriter {
+    public static int BATCH_SIZE = Integer.parseInt(System.getenv().getOrDefault("PERSIST_BATCH_SIZE", "256"));
+    public static long LINGER_MS = Long.parseLong(System.getenv().getOrDefault("PERSIST_LINGER_MS", "10"));
+    public static int RETRIES = Integer.parseInt(System.getenv().getOrDefault("PERSIST_RETRIES", "10"));
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final long RETRY_MIN_MS = 100;
+    private static final long RETRY_MAX_MS = 5000;
+
+    public interface FenceHandler {
+        // messages of room were stamped under epoch or earlier claims, none of which is held
+        // any more. None of them was saved. Called on the writer thread.
+        void fenced(String room, long epoch, List<Message> messages);
+    }
+
+    private record Pending(Message message, long epoch, Runnable onCommit) {
+    }
+
+    private static final Pending STOP = new Pending(null, 0, null);
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final MessageStore store;
+    private final FenceHandler fenceHandler;
+    private final Thread thread;
+    // Set when the writer thread was interrupted during a backoff, which is not cut short.
+    private boolean interrupted;
+
+    public WriteBehindWriter(MessageStore store, FenceHandler fenceHandler) {
+        this.store = store;
+        this.fenceHandler = fenceHandler;
+        thread = Thread.ofPlatform().name("write-behind").start(this::flushLoop);
+    }
+
+    // onCommit, if not null, runs on the writer thread once the message is durable. epoch is
+    // the room claim the message was stamped under, 0 outside a cluster.
+    public void submit(Message message, long epoch, Runnable onCommit) throws InterruptedException {
+        queue.put(new Pending(message, epoch, onCommit));
+    }
+
+    public int pending() {
+        return queue.size();
+    }
+
+    // Flushes everything submitted so far and stops the writer.
+    public void stop() throws InterruptedException {
+        queue.put(STOP);
+        thread.join();
+    }
+
+    private void flushLoop() {
+        List<Pending> batch = new ArrayList<>(BATCH_SIZE);
+        boolean running = true;
+        try {
+            while (running) {
+                Pending first = queue.take();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LINGER_MS);
+                Pending next = first;
+                while (next != null) {
+                    if (next == STOP) {
+                        running = false;
+                        break;
+                    }
+                    batch.add(next);
+                    if (batch.size() >= BATCH_SIZE) {
+                        break;
+                    }
+                    next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+                if (!batch.isEmpty()) {
+                    flush(batch);
+                    batch.clear();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Save what is still queued before stopping.
+            queue.drainTo(batch);
+            batch.remove(STOP);
+            if (!batch.isEmpty()) {
+                flush(batch);
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flush(List<Pending> batch) {
+        long start = System.nanoTime();
+        // A room stamped under two claims in one batch was claimed again in between, the
+        // messages of the older claim cannot be saved.
+        Map<String, Long> epochs = new HashMap<>();
+        for (Pending pending : batch) {
+            if (pending.epoch != 0) {
+                epochs.merge(pending.message.room, pending.epoch, Math::max);
+            }
+        }
+        batch = new ArrayList<>(batch);
+        for (Map.Entry<String, Long> entry : epochs.entrySet()) {
+            fence(batch, entry.getKey(), entry.getValue() - 1);
+        }
+        if (!append(batch, epochs)) {
+            batch = appendEach(batch);
+        }
+        if (interrupted) {
+            interrupted = false;
+            Thread.currentThread().interrupt();
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        Metrics.persistLatency.recordSince(start);
+        Metrics.persistBatchSize.record(batch.size());
+        for (Pending pending : batch) {
+            if (pending.onCommit != null) {
+                try {
+                    pending.onCommit.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Failed to run commit callback: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Saves batch, fenced messages are taken out of it. Returns false if the store refused it
+    // or it failed RETRIES times.
+    private boolean append(List<Pending> batch, Map<String, Long> epochs) {
+        long backoff = RETRY_MIN_MS;
+        int attempts = 0;
+        while (!batch.isEmpty()) {
+            List<Message> messages = new ArrayList<>(batch.size());
+            for (Pending pending : batch) {
+                messages.add(pending.message);
+            }
+            try {
+                store.append(messages, epochs);
+                return true;
+            } catch (FencedException e) {
+                fence(batch, e.room(), epochs.remove(e.room()));
+                continue;
+            } catch (RejectedBatchException e) {
+                System.err.println("Store refused " + batch.size() + " messages: " + e.getMessage());
+                return false;
+            } catch (IOException e) {
+                if (++attempts >= RETRIES) {
+                    System.err.println("Failed to save " + batch.size() + " messages, giving up after " + attempts + " attempts: " + e.getMessage());
+                    return false;
+                }
+                System.err.println("Failed to save " + batch.size() + " messages, retrying in " + backoff + "ms: " + e.getMessage());
+            }
+            // Interrupts do not cut the wait short, the batch has to be saved either way.
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            backoff = Math.min(backoff * 2, RETRY_MAX_MS);
+        }
+        return true;
+    }
+
+    // Saves the messages of a failed batch one at a time and returns those that were saved.
+    private List<Pending> appendEach(List<Pending> batch) {
+        List<Pending> saved = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            List<Pending> single = new ArrayList<>(List.of(pending));
+            Map<String, Long> epochs = new HashMap<>();
+            if (pending.epoch != 0) {
+                epochs.put(pending.message.room, pending.epoch);
+            }
+            if (append(single, epochs)) {
+                saved.addAll(single);
+            } else {
+                Metrics.discarded.increment();
+                System.err.println("Discarded message " + pending.message.seq + " of room " + pending.message.room
+                        + " by " + pending.message.username + ", it could not be saved");
+            }
+        }
+        return saved;
+    }
+
+    // Takes the messages of room stamped under epoch or earlier out of batch and hands them
+    // to the fence handler.
+    private void fence(List<Pending> batch, String room, long epoch) {
+        List<Message> fenced = new ArrayList<>();
+        for (Iterator<Pending> it = batch.iterator(); it.hasNext(); ) {
+            Pending pending = it.next();
+            if (pending.epoch != 0 && pending.epoch <= epoch && pending.message.room.equals(room)) {
+                fenced.add(pending.message);
+                it.remove();
+            }
+        }
+        if (!fenced.isEmpty()) {
+            try {
+                fenceHandler.fenced(room, epoch, fenced);
+            } catch (RuntimeException e) {
+                System.err.println("Failed to handle fenced messages: " + e.getMessage());
+            }
+        }
+    }
+}
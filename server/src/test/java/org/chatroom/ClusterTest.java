@@ -0,0 +1,293 @@
+package org.chatroom;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Three server nodes in their own processes on localhost, sharing an H2 database served by
+// this JVM. A room moves away from its owner when the owner is killed and back when it
+// restarts, and every client still sees one message per seq with no gaps.
+class ClusterTest {
+    private static final int NODES = 3;
+    private static final int PER_CLIENT = 10;
+    private static final long TIMEOUT_MS = 30_000;
+
+    private Path dir;
+    private String dbUrl;
+    private Connection db;
+    private final int[] ports = new int[NODES];
+    private String busNodes;
+    private final Process[] nodes = new Process[NODES];
+    private final List<List<String>> logs = new ArrayList<>();
+    private final List<Client> clients = new ArrayList<>();
+    // Text of every seq received by any client, to check they all saw the same message.
+    private final Map<Long, String> seen = new HashMap<>();
+
+    @BeforeEach
+    void setUp() throws IOException, SQLException {
+        dir = Files.createTempDirectory("cluster");
+        dbUrl = "jdbc:h2:file:" + dir.resolve("chat") + ";MODE=PostgreSQL;AUTO_SERVER=TRUE";
+        db = DriverManager.getConnection(dbUrl);
+        try (Statement stmt = db.createStatement()) {
+            stmt.execute("CREATE TABLE text_msg (id SERIAL PRIMARY KEY, room TEXT NOT NULL, seq BIGINT NOT NULL, client_id BIGINT NOT NULL DEFAULT 0, username TEXT NOT NULL, date BIGINT NOT NULL, text TEXT NOT NULL)");
+            stmt.execute("CREATE TABLE image_msg (id SERIAL PRIMARY KEY, room TEXT NOT NULL, seq BIGINT NOT NULL, client_id BIGINT NOT NULL DEFAULT 0, username TEXT NOT NULL, date BIGINT NOT NULL, hash TEXT NOT NULL, size INT NOT NULL, width INT NOT NULL, height INT NOT NULL)");
+            stmt.execute("CREATE TABLE blob (hash TEXT PRIMARY KEY, data BYTEA NOT NULL)");
+            stmt.execute("CREATE TABLE room_epoch (room TEXT PRIMARY KEY, epoch BIGINT NOT NULL)");
+            stmt.execute("CREATE UNIQUE INDEX text_msg_room_seq ON text_msg (room, seq)");
+            stmt.execute("CREATE UNIQUE INDEX image_msg_room_seq ON image_msg (room, seq)");
+        }
+        List<String> bus = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            ports[i] = freePort();
+            bus.add("localhost:" + freePort());
+            logs.add(new ArrayList<>());
+        }
+        busNodes = String.join(",", bus);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException, SQLException, InterruptedException {
+        for (Client client : clients) {
+            client.close();
+        }
+        for (Process node : nodes) {
+            if (node != null) {
+                node.destroyForcibly().waitFor();
+            }
+        }
+        db.close();
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    void roomMovesAwayAndBackWithoutRepeatingOrSkippingSeqs() throws Exception {
+        String room = roomOwnedBy(0);
+        for (int i = 0; i < NODES; i++) {
+            start(i);
+        }
+        for (int i = 0; i < NODES; i++) {
+            awaitPeers(i, 1);
+        }
+        Client first = connect(0, room, "a", 0);
+        Client second = connect(1, room, "b", 0);
+        Client third = connect(2, room, "c", 0);
+        exchange(List.of(first, second, third), 1);
+
+        // The owner goes away, its room moves to one of the others.
+        kill(0);
+        awaitLog(1, "Node 0 left", 1);
+        awaitLog(2, "Node 0 left", 1);
+        first.close();
+        exchange(List.of(second, third), 1 + 3 * PER_CLIENT);
+
+        // It comes back and owns the room again, continuing after the seqs stamped meanwhile.
+        start(0);
+        awaitPeers(0, 1);
+        awaitLog(1, "Node 0 joined", 2);
+        awaitLog(2, "Node 0 joined", 2);
+        Client rejoined = connect(0, room, "a", 3 * PER_CLIENT);
+        rejoined.expect(3 * PER_CLIENT + 1, 2 * PER_CLIENT);
+        exchange(List.of(rejoined, second, third), 1 + 5 * PER_CLIENT);
+
+        List<Long> saved = new ArrayList<>();
+        try (PreparedStatement stmt = db.prepareStatement("SELECT seq, text FROM text_msg WHERE room = ? ORDER BY seq")) {
+            stmt.setString(1, room);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    saved.add(rs.getLong(1));
+                    assertEquals(seen.get(rs.getLong(1)), rs.getString(2));
+                }
+            }
+        }
+        assertEquals(8 * PER_CLIENT, saved.size());
+        for (int i = 0; i < saved.size(); i++) {
+            assertEquals(i + 1, saved.get(i));
+        }
+    }
+
+    // Every client posts PER_CLIENT messages, then each must receive all of them from
+    // firstSeq on, in seq order without gaps.
+    private void exchange(List<Client> group, long firstSeq) throws Exception {
+        for (int k = 0; k < PER_CLIENT; k++) {
+            for (Client client : group) {
+                client.send(client.username + "-" + firstSeq + "-" + k);
+            }
+        }
+        for (Client client : group) {
+            client.expect(firstSeq, group.size() * PER_CLIENT);
+        }
+    }
+
+    // A room that node prefers over every other node, so it moves when node leaves.
+    private static String roomOwnedBy(int node) {
+        for (int i = 0; ; i++) {
+            String room = "room-" + i;
+            boolean owned = true;
+            for (int other = 0; other < NODES; other++) {
+                if (other != node && ClusterBus.weight(room, other) > ClusterBus.weight(room, node)) {
+                    owned = false;
+                }
+            }
+            if (owned) {
+                return room;
+            }
+        }
+    }
+
+    private void start(int node) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), ChatServer.class.getName());
+        builder.environment().put("SERVER_PORT", String.valueOf(ports[node]));
+        builder.environment().put("DB_URL", dbUrl);
+        builder.environment().put("CLUSTER_NODES", busNodes);
+        builder.environment().put("NODE_ID", String.valueOf(node));
+        builder.environment().remove("METRICS_PORT");
+        builder.environment().remove("STORE");
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        nodes[node] = process;
+        List<String> log = logs.get(node);
+        synchronized (log) {
+            log.clear();
+        }
+        Thread.ofPlatform().daemon().start(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    synchronized (log) {
+                        log.add(line);
+                        log.notifyAll();
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+        });
+        awaitLog(node, "Server started", 1);
+    }
+
+    private void kill(int node) throws InterruptedException {
+        nodes[node].destroyForcibly().waitFor();
+        nodes[node] = null;
+    }
+
+    // Waits until node is connected to every other node, count times since it started.
+    private void awaitPeers(int node, int count) throws InterruptedException {
+        for (int other = 0; other < NODES; other++) {
+            if (other != node) {
+                awaitLog(node, "Node " + other + " joined", count);
+            }
+        }
+    }
+
+    private void awaitLog(int node, String text, int count) throws InterruptedException {
+        List<String> log = logs.get(node);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        synchronized (log) {
+            while (log.stream().filter(line -> line.contains(text)).count() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue(remaining > 0, "Node " + node + " did not log \"" + text + "\": " + log);
+                log.wait(remaining);
+            }
+        }
+    }
+
+    private Client connect(int node, String room, String username, long lastSeq) throws IOException {
+        Client client = new Client(ports[node], room, username, lastSeq);
+        clients.add(client);
+        return client;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // A bare protocol client. History and live messages land in one queue.
+    private final class Client {
+        final String username;
+        final Socket socket;
+        final DataOutputStream out;
+        final LinkedBlockingQueue<Message> received = new LinkedBlockingQueue<>();
+        final TrafficStats traffic = new TrafficStats();
+        final String room;
+
+        Client(int port, String room, String username, long lastSeq) throws IOException {
+            this.username = username;
+            this.room = room;
+            socket = new Socket("localhost", port);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Handshake.join(in, out, room, lastSeq, 0, 4, received::addAll, traffic);
+            assertTrue(Handshake.login(in, out, username));
+            Thread.ofPlatform().daemon().start(() -> {
+                try {
+                    while (true) {
+                        received.add(MessageCodec.decode(Compression.readFrame(in, traffic)));
+                    }
+                } catch (IOException ignored) {
+                }
+            });
+        }
+
+        void send(String text) throws IOException {
+            Message message = new Message();
+            message.room = room;
+            message.username = username;
+            message.date = new Date();
+            message.content = text;
+            Compression.writeFrame(out, MessageCodec.encode(message), false, traffic);
+            out.flush();
+        }
+
+        // Takes the next count messages, which must carry the seqs from firstSeq on.
+        void expect(long firstSeq, int count) throws InterruptedException {
+            for (int i = 0; i < count; i++) {
+                Message message = received.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                assertNotNull(message, username + " is missing seq " + (firstSeq + i));
+                assertEquals(firstSeq + i, message.seq, username + " got seqs out of order");
+                String previous = seen.putIfAbsent(message.seq, (String) message.content);
+                assertEquals(previous == null ? message.content : previous, message.content, "Seq " + message.seq + " was stamped twice");
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.chatroom;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Producers race through a ring much smaller than what they put, so it wraps around thousands
+// of times while full. The consumer must see every item once, each producer's in order.
+class IngestRingTest {
+    private static final int PRODUCERS = 4;
+    private static final int PER_PRODUCER = 20_000;
+
+    private record Item(int producer, int n) {
+    }
+
+    @Test
+    void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(8, new IngestRing<>(8).capacity());
+        assertEquals(16, new IngestRing<>(9).capacity());
+        assertEquals(1024, new IngestRing<>(1000).capacity());
+    }
+
+    @Test
+    @Timeout(value = 60, unit = TimeUnit.SECONDS)
+    void wrapsAroundUnderConcurrentProducers() throws InterruptedException {
+        IngestRing<Item> ring = new IngestRing<>(8);
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            int producer = p;
+            producers.add(Thread.ofPlatform().start(() -> {
+                try {
+                    for (int n = 0; n < PER_PRODUCER; n++) {
+                        ring.put(new Item(producer, n));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        int[] next = new int[PRODUCERS];
+        int received = 0;
+        while (received < PRODUCERS * PER_PRODUCER) {
+            int drained = ring.drainTo(item -> {
+                assertEquals(next[item.producer], item.n, "item of producer " + item.producer);
+                next[item.producer]++;
+            }, 1 + received % 5);
+            assertTrue(drained >= 1 && drained <= 1 + received % 5);
+            received += drained;
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        for (int p = 0; p < PRODUCERS; p++) {
+            assertEquals(PER_PRODUCER, next[p]);
+        }
+        assertEquals(0, ring.size());
+    }
+}
@@ -0,0 +1,156 @@
+package org.chatroom;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// A crash can leave a record half written, or written but not what was checksummed. When the
+// room is opened again the log is cut back to the last intact record and appends continue
+// from there.
+class LogMessageStoreTest {
+    private static final String ROOM = "room";
+
+    private Path dir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory("log-store");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    void reopensWhatWasAppended() throws IOException {
+        append(1, 10);
+        LogMessageStore store = new LogMessageStore(dir);
+        assertEquals(10, store.maxSeq(ROOM));
+        assertEquals(seqs(1, 10), stream(store, 0));
+        assertEquals(seqs(6, 10), stream(store, 5));
+        store.close();
+    }
+
+    @Test
+    void truncatesATornTail() throws IOException {
+        append(1, 10);
+        Path segment = segment();
+        long intact = Files.size(segment);
+        // The header of a record whose body never made it to disk.
+        try (FileChannel channel = FileChannel.open(segment, APPEND)) {
+            channel.write(ByteBuffer.allocate(20).putInt(100).putInt(0).putLong(11).flip());
+        }
+        assertRecovered(segment, intact, 10);
+    }
+
+    @Test
+    void truncatesARecordThatFailsItsChecksum() throws IOException {
+        append(1, 10);
+        Path segment = segment();
+        long size = Files.size(segment);
+        // The last byte of the last message, its text.
+        try (FileChannel channel = FileChannel.open(segment, READ, WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, size - 1);
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) (last.get(0) ^ 1)}), size - 1);
+        }
+        assertRecovered(segment, size - recordSize(10), 9);
+    }
+
+    private void assertRecovered(Path segment, long intact, long lastSeq) throws IOException {
+        LogMessageStore store = new LogMessageStore(dir);
+        assertEquals(lastSeq, store.maxSeq(ROOM));
+        assertEquals(seqs(1, lastSeq), stream(store, 0));
+        assertEquals(intact, Files.size(segment));
+        store.append(messages(lastSeq + 1, lastSeq + 1), Map.of());
+        store.close();
+        store = new LogMessageStore(dir);
+        assertEquals(seqs(1, lastSeq + 1), stream(store, 0));
+        store.close();
+    }
+
+    private void append(long from, long to) throws IOException {
+        LogMessageStore store = new LogMessageStore(dir);
+        store.append(messages(from, to), Map.of());
+        store.close();
+    }
+
+    private Path segment() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.resolve("rooms"))) {
+            return paths.filter(path -> path.toString().endsWith(".log")).findFirst().orElseThrow();
+        }
+    }
+
+    private static List<Message> messages(long from, long to) {
+        List<Message> messages = new ArrayList<>();
+        for (long seq = from; seq <= to; seq++) {
+            messages.add(message(seq));
+        }
+        return messages;
+    }
+
+    private static Message message(long seq) {
+        Message message = new Message();
+        message.room = ROOM;
+        message.seq = seq;
+        message.username = "user";
+        message.date = new Date(seq);
+        message.content = "message " + seq;
+        return message;
+    }
+
+    // Header plus the encoded message.
+    private static long recordSize(long seq) {
+        return 16 + MessageCodec.encode(message(seq)).length;
+    }
+
+    private static List<Long> seqs(long from, long to) {
+        List<Long> seqs = new ArrayList<>();
+        for (long seq = from; seq <= to; seq++) {
+            seqs.add(seq);
+        }
+        return seqs;
+    }
+
+    private static List<Long> stream(LogMessageStore store, long afterSeq) throws IOException {
+        List<Long> seqs = new ArrayList<>();
+        store.stream(ROOM, afterSeq, Long.MAX_VALUE, new ChatServer.HistorySink() {
+            @Override
+            public void accept(List<Message> chunk) {
+                for (Message message : chunk) {
+                    seqs.add(message.seq);
+                }
+            }
+
+            @Override
+            public void acceptEncoded(List<Frame> chunk) {
+                for (Frame frame : chunk) {
+                    seqs.add(frame.message().seq);
+                }
+            }
+        });
+        return seqs;
+    }
+}
@@ -0,0 +1,132 @@
+package org.chatroom;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// A message the store will not take is discarded on its own, the messages queued with it and
+// behind it are still saved and committed.
+class WriteBehindWriterTest {
+    private static final String POISON = "bad\u0000text";
+    private final int retries = WriteBehindWriter.RETRIES;
+
+    @AfterEach
+    void tearDown() {
+        WriteBehindWriter.RETRIES = retries;
+    }
+
+    @Test
+    void rejectedMessageDoesNotBlockTheOthers() throws InterruptedException {
+        FakeStore store = new FakeStore(true);
+        List<Long> committed = write(store);
+        assertEquals(List.of(1L, 2L, 4L, 5L), store.saved);
+        assertEquals(List.of(1L, 2L, 4L, 5L), committed);
+    }
+
+    @Test
+    void messageThatKeepsFailingIsDiscardedAfterRetries() throws InterruptedException {
+        WriteBehindWriter.RETRIES = 2;
+        FakeStore store = new FakeStore(false);
+        List<Long> committed = write(store);
+        assertEquals(List.of(1L, 2L, 4L, 5L), store.saved);
+        assertEquals(List.of(1L, 2L, 4L, 5L), committed);
+    }
+
+    // Submits seqs 1 to 5 with seq 3 poisoned and returns the seqs committed.
+    private static List<Long> write(FakeStore store) throws InterruptedException {
+        long discarded = Metrics.discarded.sum();
+        WriteBehindWriter writer = new WriteBehindWriter(store, (room, epoch, messages) -> {
+        });
+        List<Long> committed = new ArrayList<>();
+        for (long seq = 1; seq <= 5; seq++) {
+            Message message = message(seq, seq == 3 ? POISON : "message " + seq);
+            writer.submit(message, 0, () -> committed.add(message.seq));
+        }
+        writer.stop();
+        assertEquals(discarded + 1, Metrics.discarded.sum());
+        return committed;
+    }
+
+    private static Message message(long seq, String text) {
+        Message message = new Message();
+        message.room = "room";
+        message.seq = seq;
+        message.username = "user";
+        message.date = new Date();
+        message.content = text;
+        return message;
+    }
+
+    // Saves every batch without the poisoned message, refuses the others like PostgreSQL
+    // refuses a NUL character, or fails them as if the connection broke.
+    private static final class FakeStore implements MessageStore {
+        private final boolean reject;
+        private final List<Long> saved = new ArrayList<>();
+
+        FakeStore(boolean reject) {
+            this.reject = reject;
+        }
+
+        @Override
+        public void append(List<Message> messages, Map<String, Long> epochs) throws IOException {
+            for (Message message : messages) {
+                if (POISON.equals(message.content)) {
+                    if (reject) {
+                        throw new RejectedBatchException("invalid byte sequence", new SQLException("invalid byte sequence", "22021"));
+                    }
+                    throw new IOException("connection reset");
+                }
+            }
+            for (Message message : messages) {
+                saved.add(message.seq);
+            }
+        }
+
+        @Override
+        public long claim(String room) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long maxSeq(String room) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void stream(String room, long afterSeq, long beforeSeq, ChatServer.HistorySink sink) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<Message> search(String room, String query, int offset, int limit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void putBlob(String hash, byte[] data) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean hasBlob(String hash) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] getBlob(String hash) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}